@@ -0,0 +1,51 @@
+import java.util.Arrays;
+
+import benchmarks.KernelOperations;
+
+/**
+ * Runs the inner loops of the kernels for the JMH benchmarks, see {@link KernelOperations}.
+ * @author Jason Gould
+ */
+public class NNKernelOperations implements KernelOperations {
+    private NNKernelBackend backend;
+    private int width;
+    private boolean singlePrecision;
+    private double[] row;
+    private double[] otherRow;
+    private float[] floatRow;
+    private float[] otherFloatRow;
+
+    public NNKernelOperations() {}
+
+    @Override
+    public void setUp(boolean scalar, int _width, boolean _singlePrecision) {
+        backend = scalar ? NNKernels.newScalarBackend() : NNKernels.getBackend();
+        width = _width;
+        singlePrecision = _singlePrecision;
+        row = new double[width];
+        otherRow = new double[width];
+        floatRow = new float[width];
+        otherFloatRow = new float[width];
+        Arrays.fill(row, 0.5);
+        Arrays.fill(floatRow, 0.5f);
+    }
+
+    @Override
+    public double dot() {
+        return singlePrecision ? backend.dot(floatRow, 0, otherFloatRow, 0, width) :
+                backend.dot(row, 0, otherRow, 0, width);
+    }
+
+    @Override
+    public double addScaled() {
+        //alternating signs keep the values from growing without bound
+        if(singlePrecision) {
+            backend.addScaled(1e-3f, floatRow, 0, otherFloatRow, 0, width);
+            backend.addScaled(-1e-3f, floatRow, 0, otherFloatRow, 0, width);
+            return otherFloatRow[0];
+        }
+        backend.addScaled(1e-3, row, 0, otherRow, 0, width);
+        backend.addScaled(-1e-3, row, 0, otherRow, 0, width);
+        return otherRow[0];
+    }
+}
@@ -0,0 +1,178 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+import benchmarks.NetworkOperations;
+
+/**
+ * Runs the operations of the neural network for the JMH benchmarks, see {@link NetworkOperations}. The networks train
+ * either on one of the data files in the repository root or on a generated data file of NUM_SETS data sets of random
+ * 0/1 values, with INPUT_DENSITY of the inputs set, so that the same data sets can be multiplied densely or indexed as
+ * sparse rows. Every operation runs on a network of its own, so one cannot change the weights another works with.
+ * @author Jason Gould
+ */
+public class NNNetworkOperations implements NetworkOperations {
+    private static final String DATA_FILE_EXTENSION = ".data";
+    private static final int NUM_SETS = 1024;
+    private static final int BATCH_SIZE = 32;
+    private static final double LEARNING_RATE = 0.2;
+    //well under the density up to which a data store indexes its inputs as sparse rows
+    private static final double INPUT_DENSITY = 0.1;
+    private Path dataFile;
+    private boolean generated;
+    private boolean sparseInputs;
+    private NNDataStore data;
+    private int[] sets;
+    private int batchSize;
+    private NeuralNetwork processingNetwork;
+    private NeuralNetwork fastNetwork;
+    private NeuralNetwork propagatingNetwork;
+    private NeuralNetwork updatingNetwork;
+    private NeuralNetwork trainingNetwork;
+    private NNEvaluator evaluator;
+    private int nextSet;
+    private int nextBatch;
+
+    public NNNetworkOperations() {}
+
+    @Override
+    public void setUp(String _data, boolean _sparseInputs, boolean singlePrecision) throws IOException {
+        sparseInputs = _sparseInputs;
+        generated = !_data.endsWith(DATA_FILE_EXTENSION);
+        dataFile = generated ? writeDataFile(_data) : Paths.get(_data);
+        NNBuilder builder = load();
+        data = builder.getData();
+        int[] layerSizes = NeuralNetwork.layerSizes(data.getNumInputs(), builder.getHiddenSizes(),
+                                                    data.getNumOutputs());
+        sets = new int[data.getNumSets()];
+        for(int set = 0; set < sets.length; set++) {
+            sets[set] = set;
+        }
+        //XOR.data only has 4 sets
+        batchSize = Math.min(BATCH_SIZE, sets.length);
+
+        processingNetwork = newNetwork(layerSizes, singlePrecision);
+        fastNetwork = newNetwork(layerSizes, singlePrecision);
+        fastNetwork.setFastActivation(true);
+        propagatingNetwork = newNetwork(layerSizes, singlePrecision);
+        propagatingNetwork.process(data, 0);
+        updatingNetwork = newNetwork(layerSizes, singlePrecision);
+        updatingNetwork.process(data, 0);
+        updatingNetwork.backPropagate();
+        trainingNetwork = newNetwork(layerSizes, singlePrecision);
+        evaluator = new NNEvaluator(newNetwork(layerSizes, singlePrecision), data.getNumOutputs(), null);
+    }
+
+    @Override
+    public double process() {
+        processingNetwork.process(data, nextSet);
+        nextSet = (nextSet + 1) % sets.length;
+        return processingNetwork.getOutputNeuronValue()[0];
+    }
+
+    @Override
+    public double processFastSigmoid() {
+        fastNetwork.process(data, nextSet);
+        nextSet = (nextSet + 1) % sets.length;
+        return fastNetwork.getOutputNeuronValue()[0];
+    }
+
+    @Override
+    public double backPropagate() {
+        propagatingNetwork.backPropagate();
+        return propagatingNetwork.getErrorOffsets()[0][0];
+    }
+
+    @Override
+    public double updateWeights() {
+        updatingNetwork.updateWeights();
+        return updatingNetwork.getWeights()[0][0];
+    }
+
+    @Override
+    public double trainBatch() {
+        int numSets = Math.min(batchSize, sets.length - nextBatch);
+        trainingNetwork.trainBatch(data, sets, nextBatch, numSets);
+        trainingNetwork.updateWeights();
+        nextBatch = (nextBatch + numSets) % sets.length;
+        return trainingNetwork.getWeights()[0][0];
+    }
+
+    @Override
+    public double calcAccuracy() {
+        return evaluator.calcAccuracy(data, sets);
+    }
+
+    @Override
+    public double loadDataFile() throws IOException {
+        return load().getData().getNumSets();
+    }
+
+    @Override
+    public void tearDown() throws IOException {
+        if(generated) {
+            Files.deleteIfExists(dataFile);
+        }
+    }
+
+    private NNBuilder load() throws IOException {
+        NNBuilder builder = new NNBuilder(dataFile.toString());
+        builder.loadDataFile();
+        if(sparseInputs && !builder.getData().indexSparseInputs()) {
+            throw new IllegalStateException("The inputs of " + dataFile + " are too dense to index as sparse rows");
+        }
+        return builder;
+    }
+
+    private static NeuralNetwork newNetwork(int[] layerSizes, boolean singlePrecision) {
+        Random randomGenerator = new Random(layerSizes[0] * 31L + layerSizes[1]);
+        double[][] weights = NeuralNetwork.newWeights(layerSizes);
+        for(double[] matrix: weights) {
+            for(int index = 0; index < matrix.length; index++) {
+                matrix[index] = randomGenerator.nextDouble() - 0.4999;
+            }
+        }
+        NeuralNetwork network = new NeuralNetwork(layerSizes, LEARNING_RATE, BATCH_SIZE, weights);
+        network.setSinglePrecision(singlePrecision);
+        return network;
+    }
+
+    /**
+     * Writes a data file of NUM_SETS data sets in the format NNBuilder reads, for a network with the layer sizes of a
+     * shape such as "64-64-8", the width of the input layer, every hidden layer and the output layer.
+     */
+    private static Path writeDataFile(String shape) throws IOException {
+        int[] layerSizes = Arrays.stream(shape.split("-")).mapToInt(Integer::parseInt).toArray();
+        int numInputs = layerSizes[0];
+        int numOutputs = layerSizes[layerSizes.length - 1];
+        int[] hiddenSizes = Arrays.copyOfRange(layerSizes, 1, layerSizes.length - 1);
+        Path dataFile = Files.createTempFile("nn-benchmark", DATA_FILE_EXTENSION);
+        dataFile.toFile().deleteOnExit();
+        Random randomGenerator = new Random(numInputs);
+        try(BufferedWriter writer = Files.newBufferedWriter(dataFile)) {
+            writer.write("NUM_INPUT\n" + numInputs + "\n\nNUM_OUTPUT\n" + numOutputs + "\n\nNUM_HIDDEN\n" +
+                    NNModelFile.formatHiddenSizes(hiddenSizes) + "\n\nLEARNING_RATE\n" + LEARNING_RATE + "\n\n");
+            for(int set = 0; set < NUM_SETS; set++) {
+                writer.write("DATA_SET\nINPUT\n");
+                writeValues(writer, randomGenerator, numInputs, INPUT_DENSITY);
+                writer.write("DESIRED_OUTPUT\n");
+                writeValues(writer, randomGenerator, numOutputs, 0.5);
+                writer.write("\n");
+            }
+        }
+        return dataFile;
+    }
+
+    private static void writeValues(BufferedWriter writer, Random randomGenerator, int numValues, double density)
+            throws IOException {
+        for(int index = 0; index < numValues; index++) {
+            writer.write(index == 0 ? "" : ", ");
+            writer.write(randomGenerator.nextDouble() < density ? "1" : "0");
+        }
+        writer.write("\n");
+    }
+}
@@ -0,0 +1,30 @@
+package benchmarks;
+
+/**
+ * The inner loops of the kernels measured by {@link NNKernelBenchmark}, reached through this interface for the same
+ * reason as the network, see {@link NetworkOperations}. Implemented by NNKernelOperations in the unnamed package.
+ * @author Jason Gould
+ */
+public interface KernelOperations {
+    String IMPLEMENTATION_CLASS = "NNKernelOperations";
+
+    static KernelOperations create() throws ReflectiveOperationException {
+        return (KernelOperations)Class.forName(IMPLEMENTATION_CLASS).getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * Creates rows of width values for the loops to work on.
+     * @param scalar whether to use the scalar backend rather than the one the kernels picked
+     */
+    void setUp(boolean scalar, int width, boolean singlePrecision);
+
+    /**
+     * Takes the dot product of two rows.
+     */
+    double dot();
+
+    /**
+     * Adds a scaled row onto another and takes it off again.
+     */
+    double addScaled();
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times parsing the data files in the repository root, XOR.data and BinaryAddition.data, and generated data files of
+ * the wider shapes {@link NNOperationsBenchmark} trains on, with and without indexing their inputs as sparse rows.
+ * @author Jason Gould
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NNDataFileBenchmark {
+    @Param({"XOR.data", "BinaryAddition.data", "64-64-8", "256-128-16", "784-128-10"})
+    public String data;
+    @Param({"dense", "sparse"})
+    public String inputs;
+    private NetworkOperations operations;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ReflectiveOperationException {
+        operations = NetworkOperations.create();
+        operations.setUp(data, inputs.equals("sparse"), false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        operations.tearDown();
+    }
+
+    @Benchmark
+    public double loadDataFile() throws IOException {
+        return operations.loadDataFile();
+    }
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times the inner loops of the kernels, dot and addScaled, over rows as wide as the hidden layers of the shapes in
+ * {@link NNOperationsBenchmark}, on the backend the kernels picked and on the scalar backend. With the Vector API
+ * added, as the vector profile of the build does, the two can be compared side by side; without it both are scalar.
+ * @author Jason Gould
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NNKernelBenchmark {
+    @Param({"selected", "scalar"})
+    public String backend;
+    @Param({"3", "30", "64", "128"})
+    public int width;
+    @Param({"double", "float"})
+    public String precision;
+    private KernelOperations operations;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        operations = KernelOperations.create();
+        operations.setUp(backend.equals("scalar"), width, precision.equals("float"));
+    }
+
+    @Benchmark
+    public double dot() {
+        return operations.dot();
+    }
+
+    @Benchmark
+    public double addScaled() {
+        return operations.addScaled();
+    }
+}
@@ -0,0 +1,85 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times the individual operations of the neural network across a range of layer shapes: on the data sets of XOR.data
+ * and BinaryAddition.data, and on generated data sets for wider and deeper networks, with dense inputs or inputs
+ * indexed as sparse rows, and with training in double or single precision. Run with the gc profiler, as the jmh
+ * profile of the build does, JMH also reports the bytes allocated per operation, gc.alloc.rate.norm, which should be
+ * zero for all of them. The Vector API kernels allocate until C2 has compiled them into every method that calls them,
+ * which takes around ten seconds with sparse inputs in single precision, so the warm up is twice as long as the
+ * measurement.
+ * @author Jason Gould
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 10, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NNOperationsBenchmark {
+    @Param({"XOR.data", "BinaryAddition.data", "64-64-8", "256-128-16", "784-128-10", "784-64-32-10"})
+    public String data;
+    @Param({"dense", "sparse"})
+    public String inputs;
+    @Param({"double", "float"})
+    public String precision;
+    private NetworkOperations operations;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ReflectiveOperationException {
+        operations = NetworkOperations.create();
+        operations.setUp(data, inputs.equals("sparse"), precision.equals("float"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        operations.tearDown();
+    }
+
+    @Benchmark
+    public double process() {
+        return operations.process();
+    }
+
+    @Benchmark
+    public double processFastSigmoid() {
+        return operations.processFastSigmoid();
+    }
+
+    @Benchmark
+    public double backPropagate() {
+        return operations.backPropagate();
+    }
+
+    @Benchmark
+    public double updateWeights() {
+        return operations.updateWeights();
+    }
+
+    @Benchmark
+    public double trainBatch() {
+        return operations.trainBatch();
+    }
+
+    @Benchmark
+    public double calcAccuracy() {
+        return operations.calcAccuracy();
+    }
+}
@@ -0,0 +1,67 @@
+package benchmarks;
+
+import java.io.IOException;
+
+/**
+ * The operations of the neural network measured by {@link NNOperationsBenchmark} and {@link NNDataFileBenchmark}. The
+ * network lives in the unnamed package, which JMH cannot generate benchmarks in and which code in a named package
+ * cannot refer to, so the benchmarks reach it through this interface, implemented by NNNetworkOperations in the
+ * unnamed package and loaded by name. Each operation returns a value that depends on its work, for JMH to consume.
+ * @author Jason Gould
+ */
+public interface NetworkOperations {
+    String IMPLEMENTATION_CLASS = "NNNetworkOperations";
+
+    static NetworkOperations create() throws ReflectiveOperationException {
+        return (NetworkOperations)Class.forName(IMPLEMENTATION_CLASS).getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * Loads the data sets the operations run on and creates networks of the shape they call for.
+     * @param data one of the data files in the repository root, such as "XOR.data", or the width of every layer of a
+     *             network to generate a data file for, such as "64-64-8"
+     * @param sparseInputs whether to index the inputs as sparse rows rather than multiply them densely
+     * @param singlePrecision whether the networks train in single rather than double precision
+     */
+    void setUp(String data, boolean sparseInputs, boolean singlePrecision) throws IOException;
+
+    /**
+     * Feeds the next data set forward through the network.
+     */
+    double process();
+
+    /**
+     * Feeds the next data set forward through a network using the fast sigmoid.
+     */
+    double processFastSigmoid();
+
+    /**
+     * Back propagates the error of the data set last fed forward.
+     */
+    double backPropagate();
+
+    /**
+     * Applies the same error offsets to the weights again.
+     */
+    double updateWeights();
+
+    /**
+     * Trains the network on the next mini-batch and applies the result to the weights.
+     */
+    double trainBatch();
+
+    /**
+     * Evaluates the accuracy of the network over every data set.
+     */
+    double calcAccuracy();
+
+    /**
+     * Parses the data file into a new data store.
+     */
+    double loadDataFile() throws IOException;
+
+    /**
+     * Deletes the data file if it was generated.
+     */
+    void tearDown() throws IOException;
+}
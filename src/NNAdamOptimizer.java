@@ -0,0 +1,83 @@
+/**
+ * Adam, which keeps running means of each weight's gradient and squared gradient and steps along the first divided by
+ * the root of the second, both corrected for starting at zero. With the averaged gradient g at step t, each step is
+ * m = beta1 * m + (1 - beta1) * g and v = beta2 * v + (1 - beta2) * g^2 followed by
+ * w += learningRate * (m / (1 - beta1^t)) / (sqrt(v / (1 - beta2^t)) + epsilon). The bias corrections are folded into
+ * the step size and epsilon once per step, so the loop over the weights does a single division and square root.
+ * Adam wants a far smaller learning rate than plain momentum; 0.001 to 0.01 is typical.
+ * @author Jason Gould
+ */
+final class NNAdamOptimizer implements NNOptimizer {
+    static final double DEFAULT_BETA1 = .9;
+    static final double DEFAULT_BETA2 = .999;
+    private static final double EPSILON = 1e-8;
+    private final double beta1;
+    private final double beta2;
+    //the state is stored as every first moment matrix followed by every second moment matrix
+    private final double[][] state;
+    private final int numWeightLayers;
+    private long step;
+
+    NNAdamOptimizer(int[] layerSizes, double _beta1, double _beta2) {
+        beta1 = _beta1;
+        beta2 = _beta2;
+        double[][] firstMoment = NeuralNetwork.newWeights(layerSizes);
+        double[][] secondMoment = NeuralNetwork.newWeights(layerSizes);
+        numWeightLayers = firstMoment.length;
+        state = new double[2 * numWeightLayers][];
+        System.arraycopy(firstMoment, 0, state, 0, numWeightLayers);
+        System.arraycopy(secondMoment, 0, state, numWeightLayers, numWeightLayers);
+    }
+
+    @Override
+    public String getName() {
+        return "adam";
+    }
+
+    @Override
+    public Double getMomentum() {
+        return null;
+    }
+
+    @Override
+    public double getAccumulationScale(double learningRate) {
+        return 1.0;
+    }
+
+    @Override
+    public double getAccumulationDecay() {
+        return 0;
+    }
+
+    @Override
+    public void update(double[][] weights, double[][] accumulated, double learningRate) {
+        step++;
+        double firstCorrection = 1 - Math.pow(beta1, step);
+        double secondCorrection = Math.sqrt(1 - Math.pow(beta2, step));
+        double stepSize = learningRate * secondCorrection / firstCorrection;
+        double epsilon = EPSILON * secondCorrection;
+        for(int layer = 0; layer < numWeightLayers; layer++) {
+            double[] layerWeights = weights[layer];
+            double[] gradient = accumulated[layer];
+            double[] firstMoment = state[layer];
+            double[] secondMoment = state[numWeightLayers + layer];
+            for(int index = 0; index < layerWeights.length; index++) {
+                double value = gradient[index];
+                firstMoment[index] = beta1 * firstMoment[index] + (1 - beta1) * value;
+                secondMoment[index] = beta2 * secondMoment[index] + (1 - beta2) * value * value;
+                layerWeights[index] += stepSize * firstMoment[index] / (Math.sqrt(secondMoment[index]) + epsilon);
+            }
+        }
+    }
+
+    @Override
+    public double[][] getState() {
+        return state;
+    }
+
+    @Override
+    public long getStep() { return step; }
+
+    @Override
+    public void setStep(long _step) { step = _step; }
+}
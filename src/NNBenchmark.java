@@ -0,0 +1,117 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Compares training modes of the neural network builder on a data file. Every mode is trained from the same seeds, so
+ * each run starts from the same weights, and the benchmark reports how many iterations each mode needed to reach the
+ * builder's desired accuracy as well as how many data sets per second it trained on. The timings cover the whole
+ * training loop, evaluation included, but not loading the data file. Afterwards one trained network is served by the
+ * inference engine in double and in single precision, and the benchmark reports how often each gets every output of
+ * a data set right and the largest difference between their outputs.
+ * <pre>
+ *   java NNBenchmark &lt;data file&gt; [threads] [runs]
+ * </pre>
+ * @author Jason Gould
+ */
+public class NNBenchmark {
+    private static final int DEFAULT_RUNS = 5;
+
+    public static void main(String[] args) {
+        assert(args.length > 0);
+
+        String dataFile = args[0];
+        int numThreads = args.length >= 2 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int numRuns = args.length >= 3 ? Integer.parseInt(args[2]) : DEFAULT_RUNS;
+
+        System.out.printf("%1$s, %2$d thread(s), %3$d run(s) per mode\n\n", dataFile, numThreads, numRuns);
+        System.out.printf("%1$-24s %2$12s %3$12s %4$12s %5$16s\n",
+                "Mode", "Iterations", "Accuracy", "Seconds", "Sets/sec");
+        benchmarkTraining(dataFile, "sequential on-line", numRuns);
+        benchmarkTraining(dataFile, "fast sigmoid on-line", numRuns, "--fast-sigmoid");
+        benchmarkTraining(dataFile, "async on-line", numRuns, "--threads", String.valueOf(numThreads), "--async");
+        benchmarkTraining(dataFile, "float training on-line", numRuns, "--training-precision", "float");
+        benchmarkTraining(dataFile, "dense inputs on-line", numRuns, "--dense-inputs");
+        comparePrecision(dataFile);
+    }
+
+    /**
+     * Trains the network numRuns times with the given extra builder options and prints the mean results.
+     */
+    private static void benchmarkTraining(String dataFile, String mode, int numRuns, String... options) {
+        double totalIterations = 0;
+        double totalAccuracy = 0;
+        double totalSeconds = 0;
+        double totalSetsTrained = 0;
+
+        for(int run = 0; run < numRuns; run++) {
+            ArrayList<String> args = new ArrayList<>(Arrays.asList(dataFile, "--seed", String.valueOf(run), "--quiet"));
+            args.addAll(Arrays.asList(options));
+
+            NNBuilder builder = new NNBuilder(dataFile);
+            builder.init(args.toArray(new String[0]));
+            long startTime = System.nanoTime();
+            builder.run();
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+
+            totalIterations += builder.getIterations();
+            totalAccuracy += builder.getAccuracy();
+            totalSeconds += seconds;
+            totalSetsTrained += (double)builder.getIterations() * builder.getNumTrainingSets();
+        }
+
+        System.out.printf("%1$-24s %2$12.1f %3$11.2f%% %4$12.3f %5$16.0f\n", mode, totalIterations / numRuns,
+                totalAccuracy / numRuns * 100, totalSeconds / numRuns, totalSetsTrained / totalSeconds);
+    }
+
+    /**
+     * Trains a network once, then runs every data set through the inference engine in double and in single precision
+     * and prints the accuracy of both along with the largest difference between their outputs.
+     */
+    private static void comparePrecision(String dataFile) {
+        NNBuilder builder = new NNBuilder(dataFile);
+        builder.init(new String[] {dataFile, "--seed", "0", "--quiet"});
+        builder.run();
+        NNDataStore data = builder.getData();
+        int numInputs = data.getNumInputs();
+        int numOutputs = data.getNumOutputs();
+        int numSets = data.getNumSets();
+        double[] inputs = new double[numSets * numInputs];
+        double[] desiredOutputs = new double[numSets * numOutputs];
+        for(int set = 0; set < numSets; set++) {
+            data.copyInputs(set, inputs, set * numInputs);
+            data.copyDesiredOutputs(set, desiredOutputs, set * numOutputs);
+        }
+
+        double[] doubleOutputs = new double[desiredOutputs.length];
+        double[] floatOutputs = new double[desiredOutputs.length];
+        new NNInferenceEngine(builder.getNetwork(), false).predict(inputs, 0, numSets, doubleOutputs, 0);
+        new NNInferenceEngine(builder.getNetwork(), true).predict(inputs, 0, numSets, floatOutputs, 0);
+        double maxDifference = 0;
+        for(int index = 0; index < desiredOutputs.length; index++) {
+            maxDifference = Math.max(maxDifference, Math.abs(doubleOutputs[index] - floatOutputs[index]));
+        }
+
+        System.out.printf("\n%1$-24s %2$12s\n", "Inference precision", "Accuracy");
+        System.out.printf("%1$-24s %2$11.2f%%\n", "double", countCorrect(doubleOutputs, desiredOutputs, numOutputs) /
+                (double)numSets * 100);
+        System.out.printf("%1$-24s %2$11.2f%%\n", "float", countCorrect(floatOutputs, desiredOutputs, numOutputs) /
+                (double)numSets * 100);
+        System.out.printf("%1$-24s %2$12.3g\n", "Max output difference", maxDifference);
+    }
+
+    /**
+     * Counts the rows whose outputs all clamp to the desired outputs, as the evaluator does.
+     */
+    private static int countCorrect(double[] outputs, double[] desiredOutputs, int numOutputs) {
+        int numCorrect = 0;
+        for(int row = 0; row < desiredOutputs.length / numOutputs; row++) {
+            boolean correct = true;
+            for(int output = 0; output < numOutputs; output++) {
+                int index = row * numOutputs + output;
+                correct &= NNEvaluator.clamp(outputs[index]) == desiredOutputs[index];
+            }
+            numCorrect += correct ? 1 : 0;
+        }
+        return numCorrect;
+    }
+}
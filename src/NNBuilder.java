@@ -1,38 +1,101 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.HashSet;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * Builds and trains a Neural Network on a provided data set.
  * @author Jason Gould
  */
 public class NNBuilder {
-    private static final double INVALID_RESULT = -1;
-    private static final boolean BATCH = false;
+    //a batch size of one is on-line learning
+    private static final int DEFAULT_BATCH_SIZE = 1;
     private static final HashSet<String> LABELS;
-    private static final String REGEX = ",";
+    private static final String CACHE_EXTENSION = ".cache";
+    private static final int CACHE_MAGIC = 0x4E4E4443;
+    private static final int CACHE_VERSION = 1;
+    private static final int CACHE_HEADER_SIZE = 64;
     private static final double DESIRED_ACCURACY = 0.9999;
     private static final int MAX_ITERATIONS = 100000;
-    private static final double PORTION_OF_DATASET_FOR_GEN_VAL_SETS = 0.1;
+    private static final int DEFAULT_CHECKPOINT_INTERVAL = 100;
+    //splitting the data sets gives the generalization and validation sets a fold of a tenth of them each
+    private static final int DEFAULT_NUM_FOLDS = 10;
     private static final boolean SHOW_VALIDATION_SET_RESULTS = false;
     private boolean splitDataSets;
     private String inputFileName;
-    private int lineNumber;
     private int numInput;
-    private int numHidden;
+    //the width of every hidden layer, from the input side to the output side
+    private int[] hiddenSizes;
+    private int[] hiddenSizesOption;
     private int numOutput;
     private double learningRate;
-    private NNDataSet[] dataSets;
-    private NNDataSet[] trainingDataSets;
-    private NNDataSet[] generalizationDataSets;
-    private NNDataSet[] validationDataSets;
-    private ArrayList<NNDataSet> setsNotBeingEvaluatedCorrectly;
+    private Double learningRateOption;
+    private String optimizerName;
+    private Double momentumOption;
+    private NNLearningRateSchedule learningRateSchedule;
+    private int batchSize;
+    private Integer batchSizeOption;
+    private boolean useCache;
+    private boolean singlePrecisionData;
+    private boolean singlePrecisionTraining;
+    private boolean denseInputs;
+    private int numThreads;
+    private Long seed;
+    private boolean async;
+    private boolean quiet;
+    private boolean fastSigmoid;
+    private String loadFileName;
+    private String saveFileName;
+    private String exportFileName;
+    private String checkpointFileName;
+    private int checkpointInterval;
+    private String resumeFileName;
+    private NNCheckpointWriter checkpointWriter;
+    private String metricsFileName;
+    private boolean metricsJson;
+    private boolean metricsJmx;
+    private NNTrainingMetrics metrics;
+    //null unless the metrics are registered as an MBean
+    private ObjectName metricsName;
+    private int evaluationInterval;
+    private int patience;
+    private double minImprovement;
+    private boolean restoreBestWeights;
+    private boolean shuffle;
+    //0 unless running a k-fold cross validation
+    private int numFolds;
+    //the fold held out as the validation sets, with the next one as the generalization sets
+    private int fold;
+    //null unless training can stop early or the best weights are kept
+    private NNEarlyStopping earlyStopping;
+    private boolean stoppedEarly;
+    private Random randomGenerator;
+    private NNDataStore data;
+    //data sets are referred to by their index in the data store
+    private int[] trainingSets;
+    //the training sets in the order of the current iteration, reshuffled from trainingSets every iteration when
+    //shuffling
+    private int[] epochSets;
+    private int[] generalizationSets;
+    private int[] validationSets;
     private NeuralNetwork network;
+    private ForkJoinPool pool;
+    private NNParallelTrainer parallelTrainer;
+    private NNEvaluator evaluator;
     private double accuracy;
     private int iterations;
+    private boolean desiredAccuracyReached;
 
     static{
         LABELS = new HashSet<>();
@@ -40,49 +103,612 @@ public class NNBuilder {
         LABELS.add("NUM_OUTPUT");
         LABELS.add("NUM_HIDDEN");
         LABELS.add("LEARNING_RATE");
+        LABELS.add("BATCH_SIZE");
         LABELS.add("DATA_SET");
         LABELS.add("INPUT");
         LABELS.add("DESIRED_OUTPUT");
     }
 
 
-    private NNBuilder(String _inputFileName) {
+    NNBuilder(String _inputFileName) {
         inputFileName = _inputFileName;
-        setsNotBeingEvaluatedCorrectly = new ArrayList<>();
+        batchSize = DEFAULT_BATCH_SIZE;
+        numThreads = 1;
+        optimizerName = NNOptimizer.NAMES.get(0);
+        learningRateSchedule = NNLearningRateSchedule.CONSTANT;
+        checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+        evaluationInterval = 1;
+    }
+
+    /**
+     * Creates a builder that trains on the data sets another builder has already loaded, instead of reading the data
+     * file again. The data store is only ever read, so any number of builders may share it and train at once.
+     */
+    NNBuilder(NNBuilder loaded) {
+        this(loaded.inputFileName);
+        data = loaded.data;
+        numInput = loaded.numInput;
+        numOutput = loaded.numOutput;
+        hiddenSizes = loaded.hiddenSizes;
+        learningRate = loaded.learningRate;
+        batchSize = loaded.batchSize;
+        singlePrecisionData = loaded.singlePrecisionData;
+    }
+
+    /**
+     * Creates a builder that trains on one fold of a k-fold cross validation, sharing the data sets another builder
+     * has already loaded. Every fold is split from the same seed, so the folds never overlap.
+     */
+    NNBuilder(NNBuilder loaded, int _fold) {
+        this(loaded);
+        fold = _fold;
+        seed = loaded.seed;
     }
 
     public static void main(String[] args) {
         assert(args.length > 0);
 
         NNBuilder program = new NNBuilder(args[0]);
+        program.load(args);
+        if(program.numFolds > 0) {
+            program.crossValidate(args);
+            return;
+        }
         program.init(args);
         program.run();
-        //program.saveData();
+        program.saveData();
+    }
+
+    void init(String[] args) {
+        load(args);
+        if(batchSizeOption != null) {
+            batchSize = batchSizeOption;
+        }
+        if(hiddenSizesOption != null) {
+            hiddenSizes = hiddenSizesOption;
+        }
+
+        NNCheckpoint checkpoint = resumeFileName != null ? readCheckpoint() : null;
+        if(checkpoint != null) {
+            seed = checkpoint.getSeed();
+        } else if(seed == null) {
+            //every run has a seed, so that a checkpoint can split the data sets the same way when it is resumed
+            seed = new Random().nextLong();
+        }
+
+        iterations = 0;
+        randomGenerator = new Random(seed);
+        //a cross validation fold is always split from the rest of the data sets
+        assignDataSets(splitDataSets || numFolds > 0);
+        //a batch can never hold more sets than there are to train on
+        batchSize = Math.min(batchSize, trainingSets.length);
+        if(checkpoint != null) {
+            network = checkpoint.restoreNetwork(batchSize);
+            hiddenSizes = network.getHiddenSizes();
+            learningRate = network.getLearningRate();
+            iterations = checkpoint.getIteration();
+            randomGenerator = checkpoint.getRandomGenerator();
+        } else if(loadFileName != null) {
+            loadNetwork();
+        } else {
+            int[] layerSizes = NeuralNetwork.layerSizes(numInput, hiddenSizes, numOutput);
+            double[][] weights = NeuralNetwork.newWeights(layerSizes);
+            for(double[] matrix: weights) {
+                genRandomWeights(matrix);
+            }
+            network = new NeuralNetwork(layerSizes, learningRate, batchSize, weights);
+        }
+        //a resumed run carries on with the learning rate and optimizer it was checkpointed with
+        if(checkpoint == null) {
+            if(learningRateOption != null) {
+                learningRate = learningRateOption;
+                network.setLearningRate(learningRate);
+            }
+            network.setOptimizer(NNOptimizer.create(optimizerName, network.getLayerSizes(), momentumOption));
+            if(momentumOption != null && network.getOptimizer().getMomentum() == null) {
+                exitWithUsage("--momentum only applies to the momentum and nesterov optimizers");
+            }
+        }
+
+        network.setFastActivation(fastSigmoid);
+        network.setLearningRateSchedule(learningRateSchedule);
+
+        if(async && (batchSize > 1 || numThreads == 1)) {
+            System.out.println("Asynchronous training is on-line learning across several threads and needs a batch " +
+                    "size of 1 and more than 1 thread. Running synchronously");
+            async = false;
+        }
+        if(async && !(network.getOptimizer() instanceof NNMomentumOptimizer)) {
+            System.out.println("Asynchronous training keeps a separate momentum per thread and only works with the " +
+                    "momentum optimizer. Running synchronously");
+            async = false;
+        }
+        if(async && singlePrecisionTraining) {
+            System.out.println("Asynchronous training updates the double precision weights from every thread at " +
+                    "once and cannot train in single precision. Running synchronously");
+            async = false;
+        }
+        network.setSinglePrecision(singlePrecisionTraining);
+        if(checkpoint != null) {
+            checkTrainingSettings(checkpoint);
+        }
+        if(numThreads > 1) {
+            pool = new ForkJoinPool(numThreads);
+            if(batchSize > 1 || async) {
+                parallelTrainer = new NNParallelTrainer(network, pool, batchSize);
+            } else {
+                System.out.println("Parallel training splits each mini-batch across threads and needs a batch size " +
+                        "larger than 1, or --async. Training on a single thread");
+            }
+        }
+        evaluator = new NNEvaluator(network, numOutput, pool);
+        if(patience > 0 || restoreBestWeights) {
+            earlyStopping = new NNEarlyStopping(network, patience, minImprovement, restoreBestWeights);
+        }
+        if(checkpointFileName != null) {
+            checkpointWriter = new NNCheckpointWriter(Paths.get(checkpointFileName), network, seed, data.getNumSets(),
+                                                      batchSize, numThreads, splitDataSets, shuffle, async);
+        }
+        if(metricsFileName != null || metricsJmx) {
+            initMetrics();
+        }
     }
 
-    private void init(String[] args) {
-        try(BufferedReader inputFile = new BufferedReader(new FileReader(inputFileName))) {
-            loadData(inputFile);
+    /**
+     * Reads the command line and loads the data file, unless the data sets are shared with another builder.
+     */
+    void load(String[] args) {
+        splitDataSets = false;
+        parseArguments(args);
+        if(data != null) {
+            return;
+        }
+
+        try {
+            loadDataFile();
         } catch(IOException ex) {
             System.out.println(ex.getMessage());
             ex.printStackTrace();
             System.exit(1);
         }
+        if(!denseInputs) {
+            data.indexSparseInputs();
+        }
+    }
 
-        splitDataSets = false;
-        if(args.length >= 2) {
-            splitDataSets = Boolean.parseBoolean(args[1]);
+    private void initMetrics() {
+        try {
+            metrics = new NNTrainingMetrics(metricsFileName == null ? null : Paths.get(metricsFileName), metricsJson);
+        } catch(IOException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+            System.exit(1);
+        }
+        network.setMetrics(metrics);
+        if(metricsJmx) {
+            try {
+                ObjectName name = new ObjectName("NNBuilder:type=TrainingMetrics,name=" +
+                                                 ObjectName.quote(inputFileName));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+                metricsName = name;
+            } catch(JMException ex) {
+                System.out.println("Unable to publish the training metrics over JMX: " + ex.getMessage());
+            }
         }
-        assignDataSets(splitDataSets);
-        //adjust the number of weights to account for the addition of the bias node
-        double[][] weightInputToHidden = genRandomWeights(numInput+1, numHidden);
-        double[][] weightHiddenToOutput = genRandomWeights(numHidden+1, numOutput);
-        network = new NeuralNetwork(numInput, numOutput, numHidden, learningRate, BATCH,
-                                    weightInputToHidden, weightHiddenToOutput);
     }
 
-    private void loadData(BufferedReader inputFile) throws IOException {
-        lineNumber = 0;
+    /**
+     * Reads the command line. The data file comes first and may be followed by true/false to split the data sets,
+     * then by any of the options below. Options override the matching values from the data file.
+     * <pre>
+     *   --batch-size N   number of data sets per mini-batch, 1 for on-line learning
+     *   --threads N      number of threads each mini-batch and each accuracy evaluation is split across
+     *   --seed N         seed for the random weights, data set split and shuffling, so runs can be reproduced
+     *   --async          with a batch size of 1 and several threads, let every thread update the weights without
+     *                    locking (Hogwild style) instead of training on a single thread
+     *   --quiet          print nothing while training, for tools that drive the builder themselves
+     *   --fast-sigmoid   approximate the sigmoid from a lookup table instead of calling Math.exp
+     *   --hidden SIZES   comma separated widths of the hidden layers, in place of NUM_HIDDEN from the data file
+     *   --learning-rate X
+     *                    learning rate to train with, in place of the one from the data file or a loaded network
+     *   --momentum X     momentum of the momentum and nesterov optimizers, from 0 up to but not including 1. They
+     *                    default to 0.5 and 0.9
+     *   --optimizer momentum|nesterov|rmsprop|adam
+     *                    how each mini-batch's gradient is applied to the weights: gradient descent with momentum,
+     *                    the default, with Nesterov momentum, RMSProp or Adam. RMSProp and Adam want a much smaller
+     *                    learning rate, around 0.001 to 0.01
+     *   --lr-schedule constant|step:N:F|exponential:G
+     *                    keep the learning rate constant, the default, multiply it by F every N iterations or by G
+     *                    every iteration
+     *   --cache          keep a binary copy of the parsed data file next to it and train straight from a memory
+     *                    mapped view of that copy, reusing it while it is newer than the data file. Data files
+     *                    too large for the heap need this
+     *   --data-precision float|double
+     *                    store the data sets as doubles, the default, or as floats, which halves the memory and
+     *                    cache file they take. This only changes how the data sets are stored, see
+     *                    --training-precision for the training itself
+     *   --training-precision float|double
+     *                    train in double precision, the default, or in mixed precision: the layer values and error
+     *                    deltas are computed in floats from float copies of the weights, but the weights, their
+     *                    gradients and the optimizer's state stay doubles. It is only faster with the Vector API
+     *                    kernels, see NNVectorKernels. Asynchronous training is always double
+     *   --dense-inputs   multiply every input, zeros included. By default, when at most half of the inputs of the
+     *                    data sets are nonzero, the nonzero ones are indexed as they are loaded and only those are
+     *                    multiplied, which trains to exactly the same weights
+     *   --load FILE      start from the network saved in FILE instead of random weights. Its hidden layer sizes and
+     *                    learning rate replace those from the data file
+     *   --save FILE      save the trained network to FILE in binary
+     *   --export FILE    save the trained network to FILE as text
+     *   --checkpoint FILE
+     *                    keep a checkpoint of the run in FILE, written in the background every
+     *                    --checkpoint-interval iterations and once more when training ends
+     *   --checkpoint-interval N
+     *                    number of iterations between checkpoints, 100 by default
+     *   --metrics FILE   write the timings, throughput, allocation rate, loss and accuracy of every iteration to FILE
+     *   --metrics-format csv|json
+     *                    write the metrics as CSV, the default, or as JSON lines
+     *   --jmx            publish the metrics of the latest iteration as a JMX MBean while training
+     *   --eval-interval N
+     *                    number of iterations between evaluations of the generalization sets, 1 by default. Training
+     *                    only stops at the desired accuracy once an evaluation sees it, and the metrics of the
+     *                    iterations in between repeat the last evaluation's loss and accuracy
+     *   --patience N     stop training once N evaluations in a row have not lowered the loss on the generalization
+     *                    sets. A resumed run starts counting again from the checkpoint
+     *   --min-improvement F
+     *                    fraction of the lowest loss so far that a loss must be below it by to count as lower for
+     *                    --patience, 0 by default. With 0.01, a run stops once N evaluations in a row have not
+     *                    lowered the loss by 1%
+     *   --shuffle        shuffle the training sets afresh every iteration instead of training on them in the
+     *                    order of the data file every time
+     *   --folds K        run a k-fold cross validation instead of a single run: the data sets are split into K
+     *                    folds, each with the same mix of classes, where a class is the largest desired output,
+     *                    and a network is trained K times, each time validating on a different fold and stopping
+     *                    on the fold after it. Needs K of at least 3 and at least K data sets, and cannot be used
+     *                    with the options that write or resume files
+     *   --restore-best   when training ends, put back the weights that had the lowest loss on the generalization
+     *                    sets if training went on past them. Checkpoints always hold the weights training ended with
+     *   --resume FILE    carry on the run checkpointed in FILE exactly where it left off. The same data file must be
+     *                    used; the seed, network, learning rate, optimizer and momentum are taken from the checkpoint
+     *                    and the data sets must be split, shuffled and batched and trained in the same precision as
+     *                    they were for it
+     * </pre>
+     */
+    private void parseArguments(String[] args) {
+        int argIndex = 1;
+        if(args.length > argIndex && !args[argIndex].startsWith("--")) {
+            splitDataSets = Boolean.parseBoolean(args[argIndex]);
+            argIndex++;
+        }
+
+        while(argIndex < args.length) {
+            String option = args[argIndex];
+            //switches take no value
+            if(option.equals("--async")) {
+                async = true;
+                argIndex++;
+                continue;
+            } else if(option.equals("--quiet")) {
+                quiet = true;
+                argIndex++;
+                continue;
+            } else if(option.equals("--cache")) {
+                useCache = true;
+                argIndex++;
+                continue;
+            } else if(option.equals("--fast-sigmoid")) {
+                fastSigmoid = true;
+                argIndex++;
+                continue;
+            } else if(option.equals("--jmx")) {
+                metricsJmx = true;
+                argIndex++;
+                continue;
+            } else if(option.equals("--restore-best")) {
+                restoreBestWeights = true;
+                argIndex++;
+                continue;
+            } else if(option.equals("--shuffle")) {
+                shuffle = true;
+                argIndex++;
+                continue;
+            } else if(option.equals("--dense-inputs")) {
+                denseInputs = true;
+                argIndex++;
+                continue;
+            }
+            if(argIndex + 1 >= args.length) {
+                exitWithUsage("Missing value for option " + option);
+            }
+            String value = args[argIndex + 1];
+            switch(option) {
+                case "--batch-size":
+                    batchSizeOption = parsePositiveInt(option, value);
+                    break;
+                case "--threads":
+                    numThreads = parsePositiveInt(option, value);
+                    break;
+                case "--seed":
+                    seed = parseLong(option, value);
+                    break;
+                case "--hidden":
+                    String[] sizes = value.split(",");
+                    hiddenSizesOption = new int[sizes.length];
+                    for(int layer = 0; layer < sizes.length; layer++) {
+                        hiddenSizesOption[layer] = parsePositiveInt(option, sizes[layer].trim());
+                    }
+                    break;
+                case "--learning-rate":
+                    learningRateOption = parsePositiveDouble(option, value);
+                    break;
+                case "--momentum":
+                    momentumOption = parseMomentum(option, value);
+                    break;
+                case "--optimizer":
+                    if(!NNOptimizer.NAMES.contains(value)) {
+                        exitWithUsage("Value for " + option + " must be one of " +
+                                String.join(", ", NNOptimizer.NAMES) + ": " + value);
+                    }
+                    optimizerName = value;
+                    break;
+                case "--lr-schedule":
+                    learningRateSchedule = NNLearningRateSchedule.parse(value);
+                    if(learningRateSchedule == null) {
+                        exitWithUsage("Value for " + option + " must be constant, step:N:F or exponential:G with N " +
+                                "at least 1 and F and G above 0: " + value);
+                    }
+                    break;
+                case "--load":
+                    loadFileName = value;
+                    break;
+                case "--save":
+                    saveFileName = value;
+                    break;
+                case "--export":
+                    exportFileName = value;
+                    break;
+                case "--checkpoint":
+                    checkpointFileName = value;
+                    break;
+                case "--checkpoint-interval":
+                    checkpointInterval = parsePositiveInt(option, value);
+                    break;
+                case "--eval-interval":
+                    evaluationInterval = parsePositiveInt(option, value);
+                    break;
+                case "--patience":
+                    patience = parsePositiveInt(option, value);
+                    break;
+                case "--min-improvement":
+                    minImprovement = parsePositiveDouble(option, value);
+                    if(minImprovement >= 1) {
+                        exitWithUsage("Value for " + option + " must be below 1: " + value);
+                    }
+                    break;
+                case "--folds":
+                    numFolds = parsePositiveInt(option, value);
+                    if(numFolds < 3) {
+                        exitWithUsage("Value for " + option + " must be at least 3: " + value);
+                    }
+                    break;
+                case "--resume":
+                    resumeFileName = value;
+                    break;
+                case "--metrics":
+                    metricsFileName = value;
+                    break;
+                case "--metrics-format":
+                    if(!value.equals("csv") && !value.equals("json")) {
+                        exitWithUsage("Value for " + option + " must be csv or json: " + value);
+                    }
+                    metricsJson = value.equals("json");
+                    break;
+                case "--data-precision":
+                    if(!value.equals("float") && !value.equals("double")) {
+                        exitWithUsage("Value for " + option + " must be float or double: " + value);
+                    }
+                    singlePrecisionData = value.equals("float");
+                    break;
+                case "--training-precision":
+                    if(!value.equals("float") && !value.equals("double")) {
+                        exitWithUsage("Value for " + option + " must be float or double: " + value);
+                    }
+                    singlePrecisionTraining = value.equals("float");
+                    break;
+                default:
+                    exitWithUsage("Unknown option " + option);
+            }
+            argIndex += 2;
+        }
+    }
+
+    private int parsePositiveInt(String option, String value) {
+        int result = 0;
+        try {
+            result = Integer.parseInt(value);
+        } catch(NumberFormatException ex) {
+            exitWithUsage("Value for " + option + " must be a whole number: " + value);
+        }
+        if(result < 1) {
+            exitWithUsage("Value for " + option + " must be at least 1: " + value);
+        }
+        return result;
+    }
+
+    private double parsePositiveDouble(String option, String value) {
+        double result = 0;
+        try {
+            result = Double.parseDouble(value);
+        } catch(NumberFormatException ex) {
+            exitWithUsage("Value for " + option + " must be a number: " + value);
+        }
+        if(!(result > 0) || Double.isInfinite(result)) {
+            exitWithUsage("Value for " + option + " must be above 0: " + value);
+        }
+        return result;
+    }
+
+    private double parseMomentum(String option, String value) {
+        double result = 0;
+        try {
+            result = Double.parseDouble(value);
+        } catch(NumberFormatException ex) {
+            exitWithUsage("Value for " + option + " must be a number: " + value);
+        }
+        if(!(result >= 0 && result < 1)) {
+            exitWithUsage("Value for " + option + " must be at least 0 and below 1: " + value);
+        }
+        return result;
+    }
+
+    private long parseLong(String option, String value) {
+        long result = 0;
+        try {
+            result = Long.parseLong(value);
+        } catch(NumberFormatException ex) {
+            exitWithUsage("Value for " + option + " must be a whole number: " + value);
+        }
+        return result;
+    }
+
+    private void exitWithUsage(String message) {
+        System.out.println(message);
+        System.out.println("Usage: NNBuilder <data file> [true|false] [--batch-size N] [--threads N] [--seed N] " +
+                "[--async] [--quiet] [--fast-sigmoid] [--hidden SIZES] [--learning-rate X] [--momentum X] " +
+                "[--optimizer momentum|nesterov|rmsprop|adam] [--lr-schedule SCHEDULE] [--cache] " +
+                "[--data-precision float|double] [--training-precision float|double] [--dense-inputs] " +
+                "[--load FILE] [--save FILE] [--export FILE] [--checkpoint FILE] [--checkpoint-interval N] " +
+                "[--resume FILE] [--metrics FILE] [--metrics-format csv|json] [--jmx] [--eval-interval N] " +
+                "[--patience N] [--min-improvement F] [--restore-best] [--shuffle] [--folds K]");
+        System.exit(1);
+    }
+
+    /**
+     * Loads the data file, from its binary cache when caching is enabled and the cache is up to date and in the
+     * requested precision. Otherwise the file is parsed, and with caching enabled the data sets are streamed straight
+     * into a new cache as they are read.
+     */
+    void loadDataFile() throws IOException {
+        Path dataFile = Paths.get(inputFileName);
+        Path cacheFile = Paths.get(inputFileName + CACHE_EXTENSION);
+        if(useCache && Files.exists(cacheFile) &&
+                Files.getLastModifiedTime(cacheFile).compareTo(Files.getLastModifiedTime(dataFile)) >= 0 &&
+                readCache(cacheFile)) {
+            return;
+        }
+
+        FileChannel cacheChannel = null;
+        Path partialFile = Paths.get(cacheFile + ".tmp");
+        if(useCache) {
+            try {
+                cacheChannel = FileChannel.open(partialFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            } catch(IOException ex) {
+                System.out.println("Unable to write the data cache " + cacheFile + ": " + ex.getMessage());
+            }
+        }
+
+        try {
+            try(NNDataReader inputFile = new NNDataReader(dataFile, LABELS)) {
+                loadData(inputFile, cacheChannel);
+            } finally {
+                if(cacheChannel != null) {
+                    cacheChannel.close();
+                }
+            }
+        } catch(IOException ex) {
+            //don't leave the partial cache of a file that failed to parse behind
+            if(cacheChannel != null) {
+                Files.deleteIfExists(partialFile);
+            }
+            throw ex;
+        }
+        if(cacheChannel != null) {
+            //the data is already mapped from the partial file, and the mapping survives the move
+            Files.move(partialFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Returns where the data sets start in a data cache for a network with numHiddenLayers hidden layers, after the
+     * fixed size header and the widths of the hidden layers.
+     */
+    private static long cacheDataOffset(int numHiddenLayers) {
+        return CACHE_HEADER_SIZE + NNModelFile.hiddenSizesLength(numHiddenLayers);
+    }
+
+    /**
+     * Writes the fixed size header of a data cache and the widths of the hidden layers after it. They are followed by
+     * the inputs and desired outputs of every data set as packed little endian doubles or floats, so they are written
+     * last, once the number of data sets is known, and the file is only moved into place after that so an
+     * interrupted run never leaves a truncated cache behind.
+     */
+    private void writeCacheHeader(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int)cacheDataOffset(hiddenSizes.length))
+                                      .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(CACHE_MAGIC).putInt(CACHE_VERSION).putInt(numInput).putInt(numOutput)
+              .putInt(hiddenSizes.length).putInt(batchSize).putDouble(learningRate).putLong(data.getNumSets())
+              .putInt(data.isSinglePrecision() ? Float.BYTES : Double.BYTES);
+        buffer.position(CACHE_HEADER_SIZE);
+        for(int hiddenSize: hiddenSizes) {
+            buffer.putInt(hiddenSize);
+        }
+        buffer.clear();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer, buffer.position());
+        }
+    }
+
+    /**
+     * Maps the data sets of a cache written while loading the data file.
+     * @return false if the file is not a cache this version can read or holds the data in the other precision, in
+     *         which case nothing was loaded
+     */
+    private boolean readCache(Path cacheFile) throws IOException {
+        try(FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(CACHE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while(buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                //keep reading until the header is complete or the file ends
+            }
+            buffer.flip();
+            if(buffer.remaining() < CACHE_HEADER_SIZE || buffer.getInt() != CACHE_MAGIC ||
+                    buffer.getInt() != CACHE_VERSION) {
+                return false;
+            }
+            int cachedNumInput = buffer.getInt();
+            int cachedNumOutput = buffer.getInt();
+            int numHiddenLayers = buffer.getInt();
+            int cachedBatchSize = buffer.getInt();
+            double cachedLearningRate = buffer.getDouble();
+            long numSets = buffer.getLong();
+            int valueBytes = buffer.getInt();
+            if(valueBytes != (singlePrecisionData ? Float.BYTES : Double.BYTES) || numSets < 1 ||
+                    numSets > Integer.MAX_VALUE || numHiddenLayers < 1 || numHiddenLayers > channel.size() ||
+                    channel.size() != cacheDataOffset(numHiddenLayers) +
+                                      numSets * (cachedNumInput + cachedNumOutput) * valueBytes) {
+                return false;
+            }
+            ByteBuffer sizes = ByteBuffer.allocate(numHiddenLayers * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while(sizes.hasRemaining() && channel.read(sizes, CACHE_HEADER_SIZE + sizes.position()) >= 0) {
+                //keep reading until every width has been read
+            }
+            sizes.flip();
+
+            numInput = cachedNumInput;
+            numOutput = cachedNumOutput;
+            hiddenSizes = new int[numHiddenLayers];
+            sizes.asIntBuffer().get(hiddenSizes);
+            batchSize = cachedBatchSize;
+            learningRate = cachedLearningRate;
+            data = NNDataStore.map(channel, cacheDataOffset(numHiddenLayers), numInput, numOutput, (int)numSets,
+                                   singlePrecisionData);
+        }
+        return true;
+    }
+
+    /**
+     * Parses the data file into the data store, streaming the data sets into cacheChannel when it is not null.
+     */
+    private void loadData(NNDataReader inputFile, FileChannel cacheChannel) throws IOException {
         boolean numInputRead = false;
         boolean numOutputRead = false;
         boolean numHiddenRead = false;
@@ -91,9 +717,9 @@ public class NNBuilder {
         //DATA_SET encountered will not reject and throw an exception
         boolean inputRead = true;
         boolean desiredOutputRead = true;
-        ArrayList<Double> inputValues = new ArrayList<>();
-        ArrayList<Double> desiredOutputValues = new ArrayList<>();
-        ArrayList<NNDataSet> loadedDataSets = new ArrayList<>();
+        double[] inputValues = null;
+        double[] desiredOutputValues = null;
+        NNDataStoreWriter writer = null;
 
         String input = getNextLine(inputFile);
 
@@ -115,73 +741,107 @@ public class NNBuilder {
                     input = handleLearningRateRead(inputFile);
                     learningRateRead = true;
                     break;
+                case "BATCH_SIZE":
+                    input = handleBatchSizeRead(inputFile);
+                    break;
                 case "DATA_SET":
                     input = handleDataSetRead(inputRead, desiredOutputRead, numHiddenRead,
                                               numInputRead, numOutputRead, learningRateRead, inputFile);
                     //Reset the flags for input and desired output values to represent the new data set read state
                     inputRead = false;
                     desiredOutputRead = false;
+                    if(writer == null) {
+                        //the sizes are only known for certain once the first data set starts
+                        writer = cacheChannel == null ?
+                                new NNDataStoreWriter(numInput, numOutput, singlePrecisionData) :
+                                new NNDataStoreWriter(numInput, numOutput, singlePrecisionData, cacheChannel,
+                                                      cacheDataOffset(hiddenSizes.length));
+                        //the writer copies each data set, so the same arrays are parsed into for every set
+                        inputValues = new double[numInput];
+                        desiredOutputValues = new double[numOutput];
+                    }
                     break;
                 case "INPUT":
                     input = handleInputRead(inputRead, inputFile, inputValues);
                     inputRead = true;
                     if(desiredOutputRead) {
-                        loadedDataSets.add(createDataSet(inputValues, desiredOutputValues));
+                        writer.add(inputValues, desiredOutputValues);
                     }
                     break;
                 case "DESIRED_OUTPUT":
                     input = handleDesiredOutputRead(desiredOutputRead, desiredOutputValues, inputFile);
                     desiredOutputRead = true;
                     if(inputRead) {
-                        loadedDataSets.add(createDataSet(inputValues, desiredOutputValues));
+                        writer.add(inputValues, desiredOutputValues);
                     }
                     break;
                 default:
                     input = getNextLine(inputFile);
             }
         }
-        assert (loadedDataSets.size() > 0);
-        dataSets = new NNDataSet[loadedDataSets.size()];
-        dataSets = loadedDataSets.toArray(dataSets);
+        if(writer == null || writer.getNumSets() == 0) {
+            throw new IOException("Error: Malformed Data file. No complete DataSet was found");
+        }
+        data = writer.finish();
+        if(cacheChannel != null) {
+            writeCacheHeader(cacheChannel);
+        }
     }
 
-    private String getNextLine(BufferedReader file) throws IOException{
-        lineNumber++;
-        String nextLine = file.readLine();
-        if(nextLine != null) {
-            nextLine = nextLine.trim();
-        }
-        return nextLine;
+    private String getNextLine(NNDataReader file) throws IOException{
+        return file.nextLine();
     }
 
-    private String handleNumInputRead(BufferedReader inputFile) throws IOException {
-        String input = getNextLine(inputFile);
-        numInput = Integer.parseInt(input);
+    private String handleNumInputRead(NNDataReader inputFile) throws IOException {
+        getNextLine(inputFile);
+        numInput = Integer.parseInt(inputFile.lineText());
         return getNextLine(inputFile);
     }
 
-    private String handleNumOutputRead(BufferedReader inputFile) throws IOException {
-        String input = getNextLine(inputFile);
-        numOutput = Integer.parseInt(input);
+    private String handleNumOutputRead(NNDataReader inputFile) throws IOException {
+        getNextLine(inputFile);
+        numOutput = Integer.parseInt(inputFile.lineText());
         return getNextLine(inputFile);
     }
 
-    private String handleNumHiddenRead(BufferedReader inputFile) throws IOException {
-        String input = getNextLine(inputFile);
-        numHidden = Integer.parseInt(input);
+    /**
+     * Reads the width of the hidden layer, or the comma separated widths of several hidden layers from the input side
+     * to the output side, such as 64,32.
+     */
+    private String handleNumHiddenRead(NNDataReader inputFile) throws IOException {
+        getNextLine(inputFile);
+        String[] sizes = inputFile.lineText().split(",");
+        hiddenSizes = new int[sizes.length];
+        for(int layer = 0; layer < sizes.length; layer++) {
+            hiddenSizes[layer] = Integer.parseInt(sizes[layer].trim());
+            if(hiddenSizes[layer] < 1) {
+                throw new IOException("Error: Malformed Data file. Every hidden layer in NUM_HIDDEN must have at " +
+                        "least 1 node on line " + inputFile.getLineNumber());
+            }
+        }
         return getNextLine(inputFile);
     }
 
-    private String handleLearningRateRead(BufferedReader inputFile) throws IOException {
-        String input = getNextLine(inputFile);
-        learningRate = Double.parseDouble(input);
+    private String handleLearningRateRead(NNDataReader inputFile) throws IOException {
+        getNextLine(inputFile);
+        learningRate = Double.parseDouble(inputFile.lineText());
+        return getNextLine(inputFile);
+    }
+
+    private String handleBatchSizeRead(NNDataReader inputFile) throws IOException {
+        getNextLine(inputFile);
+        batchSize = Integer.parseInt(inputFile.lineText());
+        if(batchSize < 1) {
+            throw new IOException("Error: Malformed Data file. BATCH_SIZE must be at least 1 on line " +
+                    inputFile.getLineNumber());
+        }
         return getNextLine(inputFile);
     }
 
     private String handleDataSetRead(boolean inputRead, boolean desiredOutputRead,
                                      boolean numHiddenRead, boolean numInputRead,
                                      boolean numOutputRead, boolean learningRateRead,
-                                     BufferedReader inputFile) throws IOException {
+                                     NNDataReader inputFile) throws IOException {
         if (inputRead && desiredOutputRead) {
             if (!numHiddenRead || !numInputRead || !numOutputRead || !learningRateRead) {
                 throw new IOException("Error: Malformed Data file. Must declare NUM_INPUT, NUM_OUTPUT," +
@@ -198,213 +858,480 @@ public class NNBuilder {
             }
 
             throw new IOException("Error: Malformed Data file. New DataSet encountered on line " +
-                    lineNumber + " before " + missingData + " was loaded for the previous DataSet.");
+                    inputFile.getLineNumber() + " before " + missingData + " was loaded for the previous DataSet.");
         }
 
         return getNextLine(inputFile);
     }
 
-    private String handleInputRead(boolean inputRead, BufferedReader inputFile,
-                                   ArrayList<Double> inputValues) throws IOException{
+    private String handleInputRead(boolean inputRead, NNDataReader inputFile,
+                                   double[] inputValues) throws IOException{
         if(inputRead) {
             throw new IOException("Error: Malformed Data File. Second input specified for a " +
-                    "single DataSet on line " + lineNumber);
+                    "single DataSet on line " + inputFile.getLineNumber());
         }
 
-        String[] splitInputValues;
-        inputValues.clear();
+        int numValues = 0;
         String input = getNextLine(inputFile);
 
         while(input != null && !LABELS.contains(input)) {
-            splitInputValues = input.split(REGEX);
-            for(String value: splitInputValues) {
-                inputValues.add(Double.parseDouble(value));
-            }
+            numValues += inputFile.readValues(inputValues, numValues);
             input = getNextLine(inputFile);
         }
+        checkValueCount("input", numInput, numValues, inputFile);
 
         return input;
     }
 
-    private String handleDesiredOutputRead(boolean desiredOutputRead, ArrayList<Double> desiredOutputValues,
-                                           BufferedReader inputFile) throws IOException {
+    private String handleDesiredOutputRead(boolean desiredOutputRead, double[] desiredOutputValues,
+                                           NNDataReader inputFile) throws IOException {
         if(desiredOutputRead) {
             throw new IOException("Error: Malformed Data File. Second desired output specified for a " +
-                    "single DataSet on line " + lineNumber);
+                    "single DataSet on line " + inputFile.getLineNumber());
         }
 
-        desiredOutputValues.clear();
-        String[] splitOutputValues;
-        String value;
+        int numValues = 0;
         String input = getNextLine(inputFile);
 
         while(input != null && !LABELS.contains(input)) {
-            splitOutputValues = input.split(REGEX);
-            for(String splitValue: splitOutputValues) {
-                if (!(value = splitValue.trim()).isEmpty()) {
-                    desiredOutputValues.add(Double.parseDouble(value));
-                }
-            }
+            numValues += inputFile.readValues(desiredOutputValues, numValues);
             input = getNextLine(inputFile);
         }
+        checkValueCount("desired output", numOutput, numValues, inputFile);
 
         return input;
     }
 
-    private NNDataSet createDataSet(ArrayList<Double> inputValues, ArrayList<Double> desiredOutputValues) {
-        Double[] inputArray = new Double[numInput+1];
-        Double[] desiredOutputArray = new Double[numOutput];
-        return new NNDataSet(inputValues.toArray(inputArray),
-                desiredOutputValues.toArray(desiredOutputArray), numInput,
-                numOutput, numHidden);
+    private void checkValueCount(String valueType, int expected, int found, NNDataReader inputFile)
+            throws IOException {
+        if(found != expected) {
+            throw new IOException("Error: Malformed Data File. Expected " + expected + " " + valueType +
+                    " values but found " + found + " for the DataSet ending on line " + inputFile.getLineNumber());
+        }
     }
 
+    /**
+     * Splits the data sets into training, generalization and validation sets, taking the validation sets from the
+     * fold being validated and the generalization sets from the fold after it. Each of the three keeps the order the
+     * data sets have in the data file.
+     */
     private void assignDataSets(boolean splitDataSets) {
-        if (splitDataSets && dataSets.length < 3) {
+        int numSets = data.getNumSets();
+        if (splitDataSets && numSets < 3) {
             System.out.println("Must supply a minimum of 3 data sets in order to use the " +
                     "training/generalization/validation data set split feature. Running using a single DataSet");
             splitDataSets = false;
         }
 
+        int[] allSets = new int[numSets];
+        for(int set = 0; set < numSets; set++) {
+            allSets[set] = set;
+        }
+
         if(splitDataSets) {
-            int smallSubset = (int)(dataSets.length * PORTION_OF_DATASET_FOR_GEN_VAL_SETS);
-            int numGenSets = smallSubset > 0 ? smallSubset : 1;
-            int numValSets = smallSubset > 0 ? smallSubset : 1;
-            int numTrainSets = dataSets.length - (numGenSets + numValSets);
-            NNDataSet[] allSets = dataSets.clone();
-
-            generalizationDataSets = extractRandomSets(allSets, numGenSets);
-            validationDataSets = extractRandomSets(allSets, numValSets);
-            trainingDataSets = new NNDataSet[numTrainSets];
+            int[] setFolds = assignFolds(numFolds > 0 ? numFolds : DEFAULT_NUM_FOLDS);
+            int validationFold = fold;
+            int generalizationFold = (fold + 1) % (numFolds > 0 ? numFolds : DEFAULT_NUM_FOLDS);
+            int numGenSets = 0;
+            int numValSets = 0;
+            for(int setFold: setFolds) {
+                numGenSets += setFold == generalizationFold ? 1 : 0;
+                numValSets += setFold == validationFold ? 1 : 0;
+            }
+
+            generalizationSets = new int[numGenSets];
+            validationSets = new int[numValSets];
+            trainingSets = new int[numSets - (numGenSets + numValSets)];
+            int genIndex = 0;
+            int valIndex = 0;
             int trainingIndex = 0;
-            for(NNDataSet set: allSets) {
-                if(set != null) {
-                    trainingDataSets[trainingIndex] = set;
-                    trainingIndex++;
+            for(int set = 0; set < numSets; set++) {
+                if(setFolds[set] == generalizationFold) {
+                    generalizationSets[genIndex++] = set;
+                } else if(setFolds[set] == validationFold) {
+                    validationSets[valIndex++] = set;
+                } else {
+                    trainingSets[trainingIndex++] = set;
                 }
             }
-            //Check to make sure we filled the training data set array
-            assert (trainingDataSets[numTrainSets-1] != null);
         } else {
-            trainingDataSets = dataSets;
-            generalizationDataSets = dataSets;
-            validationDataSets = dataSets;
+            trainingSets = allSets;
+            generalizationSets = allSets;
+            validationSets = allSets;
         }
+        epochSets = trainingSets.clone();
     }
 
-    private NNDataSet[] extractRandomSets(NNDataSet[] allSets, int numNeeded) {
-        Random randomGenerator = new Random();
-        NNDataSet[] newSets = new NNDataSet[numNeeded];
-        int setsAcquired = 0;
-
-        while(setsAcquired != numNeeded) {
-            int possibleSet = randomGenerator.nextInt(allSets.length);
-            if(allSets[possibleSet] != null) {
-                newSets[setsAcquired] = allSets[possibleSet];
-                allSets[possibleSet] = null;
-                setsAcquired++;
+    /**
+     * Deals the data sets out into numFolds folds of as near the same size as possible, stratified by class so that
+     * every fold gets as near the same share of each class as possible. The class of a data set is its largest desired
+     * output. The data sets are counting sorted by class, shuffled within each class, and then dealt out in turn, so
+     * the split takes time linear in the number of data sets and depends only on the seed.
+     * @return the fold of every data set
+     */
+    private int[] assignFolds(int numFolds) {
+        int numSets = data.getNumSets();
+        double[] desiredOutputs = new double[numOutput];
+        int[] setClasses = new int[numSets];
+        int[] classStarts = new int[numOutput + 1];
+        for(int set = 0; set < numSets; set++) {
+            data.copyDesiredOutputs(set, desiredOutputs, 0);
+            int setClass = 0;
+            for(int output = 1; output < numOutput; output++) {
+                if(desiredOutputs[output] > desiredOutputs[setClass]) {
+                    setClass = output;
+                }
             }
+            setClasses[set] = setClass;
+            classStarts[setClass + 1]++;
+        }
+        for(int setClass = 0; setClass < numOutput; setClass++) {
+            classStarts[setClass + 1] += classStarts[setClass];
         }
 
-        return newSets;
+        int[] sortedSets = new int[numSets];
+        int[] nextIndex = classStarts.clone();
+        for(int set = 0; set < numSets; set++) {
+            sortedSets[nextIndex[setClasses[set]]++] = set;
+        }
+        for(int setClass = 0; setClass < numOutput; setClass++) {
+            shuffle(sortedSets, classStarts[setClass], classStarts[setClass + 1]);
+        }
+
+        //the classes are no longer needed, so their array is reused for the folds
+        int[] setFolds = setClasses;
+        for(int index = 0; index < numSets; index++) {
+            setFolds[sortedSets[index]] = index % numFolds;
+        }
+        return setFolds;
     }
 
-    private double[][] genRandomWeights(int nodesInFirstLayer, int nodesInNextLayer) {
-        Random randomGenerator = new Random();
-        double[][] randomWeights = new double[nodesInFirstLayer][nodesInNextLayer];
-        for(int firstIndex = 0; firstIndex < nodesInFirstLayer; firstIndex++) {
-            for(int nextIndex = 0; nextIndex < nodesInNextLayer; nextIndex++) {
-                randomWeights[firstIndex][nextIndex] = randomGenerator.nextDouble() -0.4999;
-            }
+    /**
+     * Shuffles sets from index from up to but not including index to in place, with the Fisher-Yates shuffle.
+     */
+    private void shuffle(int[] sets, int from, int to) {
+        for(int index = to - 1; index > from; index--) {
+            int other = from + randomGenerator.nextInt(index - from + 1);
+            int set = sets[index];
+            sets[index] = sets[other];
+            sets[other] = set;
+        }
+    }
+
+    /**
+     * Reads the checkpoint to resume from, which must have been taken while training on the same data sets.
+     */
+    private NNCheckpoint readCheckpoint() {
+        NNCheckpoint checkpoint = null;
+        try {
+            checkpoint = NNCheckpoint.read(Paths.get(resumeFileName));
+        } catch(IOException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+            System.exit(1);
+        }
+        if(checkpoint.getNumInputs() != numInput || checkpoint.getNumOutputs() != numOutput ||
+                checkpoint.getNumSets() != data.getNumSets()) {
+            System.out.println("The checkpoint in " + resumeFileName + " was taken while training on a different " +
+                    "data file than " + inputFileName);
+            System.exit(1);
         }
+        return checkpoint;
+    }
 
-        return randomWeights;
+    /**
+     * Makes sure the run trains on the data sets the way the checkpoint's run did, as it could not otherwise carry on
+     * exactly where that run left off. Asynchronous training is compared as it will actually run, after falling back
+     * to synchronous training where it cannot be used.
+     */
+    private void checkTrainingSettings(NNCheckpoint checkpoint) {
+        String difference = null;
+        if(checkpoint.isSplit() != splitDataSets) {
+            difference = checkpoint.isSplit() ? "with the data sets split" : "without splitting the data sets";
+        } else if(checkpoint.getBatchSize() != batchSize) {
+            difference = "with a batch size of " + checkpoint.getBatchSize();
+        } else if(checkpoint.isShuffled() != shuffle) {
+            difference = checkpoint.isShuffled() ? "with --shuffle" : "without --shuffle";
+        } else if(checkpoint.isSinglePrecision() != singlePrecisionTraining) {
+            difference = "with --training-precision " + (checkpoint.isSinglePrecision() ? "float" : "double");
+        } else if(checkpoint.isFastSigmoid() != fastSigmoid) {
+            difference = checkpoint.isFastSigmoid() ? "with --fast-sigmoid" : "without --fast-sigmoid";
+        } else if(checkpoint.getNumThreads() != numThreads) {
+            difference = "with --threads " + checkpoint.getNumThreads();
+        } else if(checkpoint.isAsync() != async) {
+            difference = checkpoint.isAsync() ? "asynchronously" : "synchronously";
+        } else if(checkpoint.getLearningRateSchedule().getInterval() != learningRateSchedule.getInterval() ||
+                checkpoint.getLearningRateSchedule().getFactor() != learningRateSchedule.getFactor()) {
+            difference = "with --lr-schedule " + checkpoint.getLearningRateSchedule();
+        }
+        if(difference != null) {
+            System.out.println("The checkpoint in " + resumeFileName + " was taken while training " + difference +
+                    " and can only be resumed the same way");
+            System.exit(1);
+        }
     }
 
-    private void run() {
-        iterations = 0;
-        accuracy = calcAccuracy(generalizationDataSets);
-        outputStats();
+    /**
+     * Replaces the random starting weights with a previously saved network, which must take the same inputs and
+     * produce the same outputs as the data sets.
+     */
+    private void loadNetwork() {
+        try {
+            network = NNModelFile.load(Paths.get(loadFileName), batchSize);
+        } catch(IOException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+            System.exit(1);
+        }
+        if(network.getNumInputs() != numInput || network.getNumOutputs() != numOutput) {
+            System.out.println("The network in " + loadFileName + " takes " + network.getNumInputs() + " inputs and " +
+                    "produces " + network.getNumOutputs() + " outputs, but the data sets have " + numInput +
+                    " inputs and " + numOutput + " outputs");
+            System.exit(1);
+        }
+        hiddenSizes = network.getHiddenSizes();
+        learningRate = network.getLearningRate();
+    }
+
+    private void genRandomWeights(double[] randomWeights) {
+        for(int index = 0; index < randomWeights.length; index++) {
+            randomWeights[index] = randomGenerator.nextDouble() -0.4999;
+        }
+    }
+
+    void run() {
+        evaluate();
 
-        while(accuracy < DESIRED_ACCURACY && iterations < MAX_ITERATIONS) {
-            for(NNDataSet dataSet: trainingDataSets) {
-                network.process(dataSet);
-                network.backPropagate(dataSet);
-                if(!BATCH) {network.updateWeights();}
+        while(accuracy < DESIRED_ACCURACY && iterations < MAX_ITERATIONS && !stoppedEarly) {
+            if(metrics != null) {
+                metrics.startEpoch();
+            }
+            network.setEpoch(iterations);
+            trainEpoch();
+            if(metrics != null) {
+                metrics.endTraining();
             }
-            if(BATCH) {network.updateWeights();}
-            accuracy = calcAccuracy(generalizationDataSets);
             iterations++;
-            outputStats();
+            //the last iteration is always evaluated, so that training never ends on weights nobody has checked
+            if(iterations % evaluationInterval == 0 || iterations == MAX_ITERATIONS) {
+                evaluate();
+            }
+            if(metrics != null) {
+                recordMetrics();
+            }
+            if(checkpointWriter != null && iterations % checkpointInterval == 0) {
+                checkpointWriter.checkpoint(iterations, randomGenerator);
+            }
+        }
+        if(checkpointWriter != null) {
+            //the last checkpoint must not be skipped, so that resuming a finished run finds it finished
+            checkpointWriter.awaitWrite();
+            checkpointWriter.checkpoint(iterations, randomGenerator);
+            checkpointWriter.close();
+        }
+        desiredAccuracyReached = accuracy >= DESIRED_ACCURACY;
+        if(earlyStopping != null) {
+            finishEarlyStopping();
+        }
+        accuracy = calcAccuracy(validationSets);
+        if(pool != null) {
+            pool.shutdown();
         }
-        accuracy = calcAccuracy(validationDataSets);
         outputFinalResults();
+        if(metrics != null) {
+            closeMetrics();
+        }
     }
 
-    private double calcAccuracy(NNDataSet[] setsToEval) {
-        setsNotBeingEvaluatedCorrectly.clear();
-        double totalCorrectOutputs =  0;
-        boolean setOutputAccurate;
+    /**
+     * Measures the accuracy on the generalization sets and reports it, along with its loss, to early stopping.
+     */
+    private void evaluate() {
+        accuracy = calcAccuracy(generalizationSets);
+        if(earlyStopping != null) {
+            stoppedEarly = earlyStopping.evaluated(iterations, evaluator.getLoss());
+        }
+        outputStats();
+    }
 
-        for(NNDataSet dataSet: setsToEval) {
-            setOutputAccurate = true;
-            network.process(dataSet);
-            Double[] outputValues = dataSet.getOutputNeuronValue();
-            Double[] desiredValues = dataSet.getDesiredOutputValue();
-            for(int valueIndex = 0; valueIndex < outputValues.length; valueIndex++) {
-                if (clamp(outputValues[valueIndex]) == desiredValues[valueIndex]) {
-                    totalCorrectOutputs++;
-                } else {
-                    setOutputAccurate = false;
-                }
+    private void finishEarlyStopping() {
+        if(stoppedEarly && !quiet) {
+            System.out.printf("\nStopped early: the generalization loss has not improved in %1$d evaluations\n",
+                    patience);
+        }
+        if(earlyStopping.restoreBestWeights() && !quiet) {
+            System.out.printf("\nRestored the weights from iteration %1$d, with a generalization loss of %2$.6g\n",
+                    earlyStopping.getBestIteration(), earlyStopping.getBestLoss());
+        }
+    }
+
+    private void recordMetrics() {
+        try {
+            metrics.endEpoch(iterations, trainingSets.length, evaluator.getLoss(), accuracy);
+        } catch(IOException ex) {
+            System.out.println("Unable to write the training metrics: " + ex.getMessage());
+            closeMetrics();
+        }
+    }
+
+    private void closeMetrics() {
+        if(!quiet) {
+            System.out.printf("\nIteration Time:\tp50 %1$.3f ms, p99 %2$.3f ms\n", metrics.getEpochNanosP50() / 1e6,
+                    metrics.getEpochNanosP99() / 1e6);
+        }
+        network.setMetrics(null);
+        if(metricsName != null) {
+            //a later run in the same JVM registers its metrics under the same name
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch(JMException ex) {
+                System.out.println("Unable to remove the training metrics from JMX: " + ex.getMessage());
             }
+            metricsName = null;
+        }
+        try {
+            metrics.close();
+        } catch(IOException ex) {
+            System.out.println("Unable to write the training metrics: " + ex.getMessage());
+        }
+        metrics = null;
+    }
 
-            if(!setOutputAccurate) {
-                setsNotBeingEvaluatedCorrectly.add(dataSet);
+    private void trainEpoch() {
+        //a single batch of every training set trains the same whatever their order
+        if(shuffle && batchSize < trainingSets.length) {
+            //shuffled from the same starting order every iteration, so a resumed run shuffles exactly as the
+            //checkpointed one would have
+            System.arraycopy(trainingSets, 0, epochSets, 0, trainingSets.length);
+            shuffle(epochSets, 0, epochSets.length);
+        }
+        if(async) {
+            parallelTrainer.trainAsync(data, epochSets);
+            return;
+        }
+
+        for(int firstSet = 0; firstSet < epochSets.length; firstSet += batchSize) {
+            int numSets = Math.min(batchSize, epochSets.length - firstSet);
+            if(parallelTrainer != null) {
+                parallelTrainer.trainBatch(data, epochSets, firstSet, numSets);
+            } else {
+                network.trainBatch(data, epochSets, firstSet, numSets);
             }
+            network.updateWeights();
         }
-        return totalCorrectOutputs / (double)(setsToEval.length * numOutput);
     }
 
-    private double clamp(double value) {
-        double result;
-        if(value < .1) {
-            result = 0;
-        } else if (value > .90) {
-            result = 1;
-        } else {
-            result = INVALID_RESULT;
+    /**
+     * Trains a network on every fold of a k-fold cross validation in turn, all on the data sets this builder has
+     * loaded, and prints the accuracy each reached on the fold it was validated on along with their mean.
+     */
+    private void crossValidate(String[] args) {
+        if(saveFileName != null || exportFileName != null || checkpointFileName != null || resumeFileName != null ||
+                metricsFileName != null || metricsJmx) {
+            exitWithUsage("--folds cannot be used with --save, --export, --checkpoint, --resume, --metrics or --jmx");
+        }
+        if(data.getNumSets() < numFolds) {
+            exitWithUsage("--folds needs at least as many data sets as folds, but there are only " +
+                    data.getNumSets());
+        }
+        if(seed == null) {
+            //every fold must split the data sets from the same seed
+            seed = new Random().nextLong();
         }
 
-        return result;
+        int[] foldIterations = new int[numFolds];
+        double[] foldAccuracies = new double[numFolds];
+        for(int validationFold = 0; validationFold < numFolds; validationFold++) {
+            if(!quiet) {
+                System.out.printf("\nFold %1$d of %2$d\n", validationFold + 1, numFolds);
+            }
+            NNBuilder foldBuilder = new NNBuilder(this, validationFold);
+            foldBuilder.init(args);
+            foldBuilder.run();
+            foldIterations[validationFold] = foldBuilder.getIterations();
+            foldAccuracies[validationFold] = foldBuilder.getAccuracy();
+        }
+
+        double meanAccuracy = 0;
+        for(double foldAccuracy: foldAccuracies) {
+            meanAccuracy += foldAccuracy / numFolds;
+        }
+        double variance = 0;
+        for(double foldAccuracy: foldAccuracies) {
+            variance += (foldAccuracy - meanAccuracy) * (foldAccuracy - meanAccuracy) / numFolds;
+        }
+        System.out.printf("\nCross Validation over %1$d folds (seed %2$d):\nFold\tIterations\tAccuracy\n",
+                numFolds, seed);
+        for(int validationFold = 0; validationFold < numFolds; validationFold++) {
+            System.out.printf("%1$d\t%2$d\t\t%3$.2f %%\n", validationFold + 1, foldIterations[validationFold],
+                    foldAccuracies[validationFold]*100);
+        }
+        System.out.printf("Mean Accuracy:\t%1$.2f %% (standard deviation %2$.2f %%)\n", meanAccuracy*100,
+                Math.sqrt(variance)*100);
+    }
+
+    private double calcAccuracy(int[] setsToEval) {
+        return evaluator.calcAccuracy(data, setsToEval);
     }
 
+    int getIterations() { return iterations; }
+    double getAccuracy() { return accuracy; }
+    boolean isDesiredAccuracyReached() { return desiredAccuracyReached; }
+    double getLearningRate() { return learningRate; }
+    int getNumTrainingSets() { return trainingSets.length; }
+    int[] getHiddenSizes() { return hiddenSizes; }
+    NNDataStore getData() { return data; }
+    NeuralNetwork getNetwork() { return network; }
+
     private void outputStats() {
+        if(quiet) {
+            return;
+        }
         System.out.printf("Iteration(%1$d): %2$.2f %%\n", iterations, accuracy*100);
     }
 
     private void outputFinalResults() {
+        if(quiet) {
+            return;
+        }
         System.out.printf("\nFinal Result:\nTotal Iterations:\t%1$d\nResulting Accuracy:\t%2$.2f %%\n",
                 iterations, accuracy*100);
 
         System.out.println("\nSets the Neural Network Failed to evaluate correctly");
-        if(setsNotBeingEvaluatedCorrectly.isEmpty()) {
+        if(evaluator.getNumIncorrectSets() == 0) {
             System.out.println("None");
         } else {
-            for (NNDataSet set : setsNotBeingEvaluatedCorrectly) {
-                System.out.println(set);
+            for (int index = 0; index < evaluator.getNumIncorrectSets(); index++) {
+                outputSetResult(evaluator.getIncorrectSet(index));
             }
         }
 
         if(SHOW_VALIDATION_SET_RESULTS) {
             System.out.println("\nAll Validation Set Results:");
-            for (NNDataSet set : validationDataSets) {
-                System.out.println(set);
+            for (int set : validationSets) {
+                outputSetResult(set);
             }
         }
     }
 
-    private void saveData() {
+    private void outputSetResult(int set) {
+        network.process(data, set);
+        System.out.println(data.getDataSet(set).toString(network.getOutputNeuronValue()));
+    }
 
+    /**
+     * Saves the trained network to the files given on the command line, if any.
+     */
+    private void saveData() {
+        try {
+            if(saveFileName != null) {
+                NNModelFile.save(network, Paths.get(saveFileName));
+            }
+            if(exportFileName != null) {
+                NNModelFile.exportText(network, Paths.get(exportFileName));
+            }
+        } catch(IOException ex) {
+            System.out.println("Unable to save the trained network: " + ex.getMessage());
+        }
     }
 }
@@ -0,0 +1,207 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * A training run restored from a checkpoint file. A checkpoint holds everything a run needs to carry on exactly where
+ * it left off: the network's weights and momentum offsets, the optimizer and its state, the number of iterations
+ * trained, the seed the run started from together with the number of data sets, so the same data sets can be split the
+ * same way again, and the state of the run's random number generator. The file is a fixed size header, then the width
+ * of every hidden layer padded as in a model file, followed by the weight matrices, the offset matrices and the
+ * optimizer's state matrices as packed little endian doubles and finally the serialized random number generator. The
+ * optimizer is recorded in the header by its position in {@link NNOptimizer#NAMES}, along with its momentum. The
+ * header ends with the settings a resumed run must match to carry on exactly: the batch size, flags for whether the
+ * data sets were split, whether they were shuffled and whether training ran in single precision, with the fast sigmoid
+ * or asynchronously, the number of threads and the interval and factor of the learning rate schedule. Checkpoints are
+ * written by {@link NNCheckpointWriter}.
+ * @author Jason Gould
+ */
+final class NNCheckpoint {
+    static final int CHECKPOINT_MAGIC = 0x4E4E434B;
+    static final int CHECKPOINT_VERSION = 1;
+    static final int CHECKPOINT_HEADER_SIZE = 96;
+    static final int SPLIT_FLAG = 1;
+    static final int SHUFFLE_FLAG = 2;
+    static final int SINGLE_PRECISION_FLAG = 4;
+    static final int FAST_SIGMOID_FLAG = 8;
+    static final int ASYNC_FLAG = 16;
+    private final int[] layerSizes;
+    private final double learningRate;
+    //flat [feed][result] matrices, see NNKernels for the layout
+    private final double[][] weights;
+    private final double[][] errorOffsets;
+    private final NNOptimizer optimizer;
+    private final int iteration;
+    private final long seed;
+    private final long numSets;
+    private final Random randomGenerator;
+    private final int batchSize;
+    private final int flags;
+    private final int numThreads;
+    private final NNLearningRateSchedule learningRateSchedule;
+
+    private NNCheckpoint(int[] _layerSizes, double _learningRate, NNOptimizer _optimizer, int _iteration, long _seed,
+                         long _numSets, Random _randomGenerator, int _batchSize, int _flags, int _numThreads,
+                         NNLearningRateSchedule _learningRateSchedule) {
+        layerSizes = _layerSizes;
+        learningRate = _learningRate;
+        weights = NeuralNetwork.newWeights(layerSizes);
+        errorOffsets = NeuralNetwork.newWeights(layerSizes);
+        optimizer = _optimizer;
+        iteration = _iteration;
+        seed = _seed;
+        numSets = _numSets;
+        randomGenerator = _randomGenerator;
+        batchSize = _batchSize;
+        flags = _flags;
+        numThreads = _numThreads;
+        learningRateSchedule = _learningRateSchedule;
+    }
+
+    int getNumInputs() { return layerSizes[0]; }
+    int getNumOutputs() { return layerSizes[layerSizes.length - 1]; }
+    NNOptimizer getOptimizer() { return optimizer; }
+    int getIteration() { return iteration; }
+    long getSeed() { return seed; }
+    long getNumSets() { return numSets; }
+    Random getRandomGenerator() { return randomGenerator; }
+    int getBatchSize() { return batchSize; }
+    boolean isSplit() { return (flags & SPLIT_FLAG) != 0; }
+    boolean isShuffled() { return (flags & SHUFFLE_FLAG) != 0; }
+    boolean isSinglePrecision() { return (flags & SINGLE_PRECISION_FLAG) != 0; }
+    boolean isFastSigmoid() { return (flags & FAST_SIGMOID_FLAG) != 0; }
+    boolean isAsync() { return (flags & ASYNC_FLAG) != 0; }
+    int getNumThreads() { return numThreads; }
+    NNLearningRateSchedule getLearningRateSchedule() { return learningRateSchedule; }
+
+    /**
+     * Recreates the network as it was when the checkpoint was taken, with a workspace for batches of up to batchSize
+     * data sets. The network is handed the checkpoint's optimizer, so this may only be called once.
+     */
+    NeuralNetwork restoreNetwork(int batchSize) {
+        double[][] networkWeights = new double[weights.length][];
+        for(int layer = 0; layer < weights.length; layer++) {
+            networkWeights[layer] = weights[layer].clone();
+        }
+        NeuralNetwork network = new NeuralNetwork(layerSizes, learningRate, batchSize, networkWeights);
+        for(int layer = 0; layer < errorOffsets.length; layer++) {
+            System.arraycopy(errorOffsets[layer], 0, network.getErrorOffsets()[layer], 0, errorOffsets[layer].length);
+        }
+        network.setOptimizer(optimizer);
+        return network;
+    }
+
+    static NNCheckpoint read(Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if(channel.size() < CHECKPOINT_HEADER_SIZE) {
+                throw new IOException("Error: Malformed Checkpoint file. " + file + " is too short to be a checkpoint");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                                       .order(ByteOrder.LITTLE_ENDIAN);
+            int magic = buffer.getInt();
+            int version = buffer.getInt();
+            if(magic != CHECKPOINT_MAGIC || version != CHECKPOINT_VERSION) {
+                throw new IOException("Error: Malformed Checkpoint file. " + file + " is not a checkpoint this " +
+                        "version can read");
+            }
+            int numInputs = buffer.getInt();
+            int numOutputs = buffer.getInt();
+            int numHiddenLayers = buffer.getInt();
+            int iteration = buffer.getInt();
+            double learningRate = buffer.getDouble();
+            long seed = buffer.getLong();
+            long numSets = buffer.getLong();
+            int randomStateLength = buffer.getInt();
+            int optimizerId = buffer.getInt();
+            long optimizerStep = buffer.getLong();
+            double momentum = buffer.getDouble();
+            int batchSize = buffer.getInt();
+            int flags = buffer.getInt();
+            int numThreads = buffer.getInt();
+            int scheduleInterval = buffer.getInt();
+            double scheduleFactor = buffer.getDouble();
+            if(batchSize < 1 || numThreads < 1 || scheduleInterval < 1 || !(scheduleFactor > 0)) {
+                throw new IOException("Error: Malformed Checkpoint file. The training settings in the header of " +
+                        file + " are invalid");
+            }
+            if(optimizerId < 0 || optimizerId >= NNOptimizer.NAMES.size()) {
+                throw new IOException("Error: Malformed Checkpoint file. " + file + " was taken with an optimizer " +
+                        "this version does not know");
+            }
+            if(numHiddenLayers < 1 || numHiddenLayers > (channel.size() - CHECKPOINT_HEADER_SIZE) / Double.BYTES) {
+                throw new IOException("Error: Malformed Checkpoint file. The size of " + file + " does not match " +
+                        "the number of hidden layers in its header");
+            }
+            int[] hiddenSizes = new int[numHiddenLayers];
+            buffer.position(CHECKPOINT_HEADER_SIZE).asIntBuffer().get(hiddenSizes);
+            int weightsStart = CHECKPOINT_HEADER_SIZE + NNModelFile.hiddenSizesLength(numHiddenLayers);
+            int[] layerSizes = NeuralNetwork.layerSizes(numInputs, hiddenSizes, numOutputs);
+            if(!NNModelFile.validLayerSizes(layerSizes)) {
+                throw new IOException("Error: Malformed Checkpoint file. The layer sizes in the header of " + file +
+                        " are invalid");
+            }
+            NNOptimizer optimizer = NNOptimizer.create(NNOptimizer.NAMES.get(optimizerId), layerSizes, momentum);
+            //the weights and offsets, followed by as many matrices again for each kind of value the optimizer tracks
+            long numMatrices = 2 + optimizer.getState().length / (layerSizes.length - 1);
+            long numWeights = NeuralNetwork.countWeights(layerSizes);
+            if(randomStateLength < 0 ||
+                    channel.size() != weightsStart + numMatrices * numWeights * Double.BYTES + randomStateLength) {
+                throw new IOException("Error: Malformed Checkpoint file. The size of " + file + " does not match " +
+                        "the layer sizes in its header");
+            }
+
+            byte[] randomState = new byte[randomStateLength];
+            buffer.position(weightsStart + (int)(numMatrices * numWeights * Double.BYTES)).get(randomState);
+            NNCheckpoint checkpoint = new NNCheckpoint(layerSizes, learningRate, optimizer, iteration, seed, numSets,
+                                                       readRandom(randomState), batchSize, flags, numThreads,
+                                                       NNLearningRateSchedule.of(scheduleInterval, scheduleFactor));
+            DoubleBuffer values = buffer.position(weightsStart).asDoubleBuffer();
+            for(double[] matrix: checkpoint.weights) {
+                values.get(matrix);
+            }
+            for(double[] matrix: checkpoint.errorOffsets) {
+                values.get(matrix);
+            }
+            for(double[] matrix: optimizer.getState()) {
+                values.get(matrix);
+            }
+            optimizer.setStep(optimizerStep);
+            return checkpoint;
+        }
+    }
+
+    /**
+     * Captures the exact state of a random number generator, so that it can carry on with the same sequence later.
+     */
+    static byte[] writeRandom(Random randomGenerator) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(randomGenerator);
+        } catch(IOException ex) {
+            //writing to memory cannot fail
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Random readRandom(byte[] randomState) throws IOException {
+        try(ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(randomState))) {
+            //nothing but the random number generator itself may be read back from the file
+            input.setObjectInputFilter(info -> info.serialClass() == null || info.serialClass() == Random.class ?
+                    ObjectInputFilter.Status.ALLOWED : ObjectInputFilter.Status.REJECTED);
+            return (Random)input.readObject();
+        } catch(ClassNotFoundException | ClassCastException ex) {
+            throw new IOException("Error: Malformed Checkpoint file. The random number generator state is invalid");
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes checkpoints of a training run in the format read by {@link NNCheckpoint}. Taking a checkpoint only copies the
+ * network's weights, offsets and optimizer state into a snapshot buffer on the training thread; the buffer is written
+ * to disk by a background thread while training carries on. The same buffer is reused for every checkpoint, so a
+ * checkpoint that comes due while the previous one is still being written is skipped rather than stalling training.
+ * Each checkpoint is written next to the file and moved into place once complete, so the file always holds the last
+ * complete checkpoint.
+ * @author Jason Gould
+ */
+class NNCheckpointWriter implements Closeable {
+    private final Path file;
+    private final Path partialFile;
+    private final NeuralNetwork network;
+    private final long seed;
+    private final long numSets;
+    private final int batchSize;
+    private final int flags;
+    private final int numThreads;
+    private final ExecutorService writer;
+    private ByteBuffer snapshot;
+    private Future<?> pendingWrite;
+
+    /**
+     * @param _batchSize the batch size the run trains with, after it has been limited to the number of training sets
+     * @param _numThreads the number of threads the run trains with
+     * @param _split whether the data sets are split into training, validation and generalization sets
+     * @param _shuffle whether the training sets are shuffled every iteration
+     * @param async whether the run trains asynchronously
+     */
+    NNCheckpointWriter(Path _file, NeuralNetwork _network, long _seed, long _numSets, int _batchSize, int _numThreads,
+                       boolean _split, boolean _shuffle, boolean async) {
+        file = _file;
+        partialFile = Paths.get(file + ".tmp");
+        network = _network;
+        seed = _seed;
+        numSets = _numSets;
+        batchSize = _batchSize;
+        numThreads = _numThreads;
+        flags = (_split ? NNCheckpoint.SPLIT_FLAG : 0) | (_shuffle ? NNCheckpoint.SHUFFLE_FLAG : 0) |
+                (network.isSinglePrecision() ? NNCheckpoint.SINGLE_PRECISION_FLAG : 0) |
+                (network.isFastActivation() ? NNCheckpoint.FAST_SIGMOID_FLAG : 0) |
+                (async ? NNCheckpoint.ASYNC_FLAG : 0);
+        writer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "NN checkpoint writer");
+            //a checkpoint being written never keeps a finished or failed run alive
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Takes a checkpoint of the network after the given number of iterations. Must be called between iterations,
+     * while nothing is training the network.
+     * @return false if the previous checkpoint is still being written, in which case this one was skipped
+     */
+    boolean checkpoint(int iteration, Random randomGenerator) {
+        if(pendingWrite != null && !pendingWrite.isDone()) {
+            return false;
+        }
+
+        int[] hiddenSizes = network.getHiddenSizes();
+        int weightsStart = NNCheckpoint.CHECKPOINT_HEADER_SIZE + NNModelFile.hiddenSizesLength(hiddenSizes.length);
+        byte[] randomState = NNCheckpoint.writeRandom(randomGenerator);
+        NNOptimizer optimizer = network.getOptimizer();
+        double[][] optimizerState = optimizer.getState();
+        int numMatrices = 2 + optimizerState.length / network.getWeights().length;
+        int size = weightsStart + randomState.length +
+                numMatrices * (int)NeuralNetwork.countWeights(network.getLayerSizes()) * Double.BYTES;
+        if(snapshot == null || snapshot.capacity() < size) {
+            snapshot = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        snapshot.clear();
+        snapshot.putInt(NNCheckpoint.CHECKPOINT_MAGIC).putInt(NNCheckpoint.CHECKPOINT_VERSION)
+                .putInt(network.getNumInputs()).putInt(network.getNumOutputs()).putInt(hiddenSizes.length)
+                .putInt(iteration).putDouble(network.getLearningRate()).putLong(seed).putLong(numSets)
+                .putInt(randomState.length).putInt(NNOptimizer.NAMES.indexOf(optimizer.getName()))
+                .putLong(optimizer.getStep()).putDouble(optimizer.getMomentum() == null ? 0 : optimizer.getMomentum())
+                .putInt(batchSize).putInt(flags).putInt(numThreads)
+                .putInt(network.getLearningRateSchedule().getInterval())
+                .putDouble(network.getLearningRateSchedule().getFactor());
+        snapshot.position(NNCheckpoint.CHECKPOINT_HEADER_SIZE);
+        for(int hiddenSize: hiddenSizes) {
+            snapshot.putInt(hiddenSize);
+        }
+        snapshot.position(weightsStart);
+        DoubleBuffer values = snapshot.asDoubleBuffer();
+        for(double[] matrix: network.getWeights()) {
+            values.put(matrix);
+        }
+        for(double[] matrix: network.getErrorOffsets()) {
+            values.put(matrix);
+        }
+        for(double[] matrix: optimizerState) {
+            values.put(matrix);
+        }
+        snapshot.position(snapshot.position() + values.position() * Double.BYTES);
+        snapshot.put(randomState);
+        snapshot.flip();
+
+        pendingWrite = writer.submit(this::write);
+        return true;
+    }
+
+    private void write() {
+        try {
+            try(FileChannel channel = FileChannel.open(partialFile, StandardOpenOption.CREATE,
+                                                       StandardOpenOption.WRITE,
+                                                       StandardOpenOption.TRUNCATE_EXISTING)) {
+                while(snapshot.hasRemaining()) {
+                    channel.write(snapshot);
+                }
+            }
+            Files.move(partialFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException ex) {
+            System.out.println("Unable to write the checkpoint " + file + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Waits for the checkpoint being written, if any, to complete, so that the next checkpoint cannot be skipped.
+     */
+    void awaitWrite() {
+        if(pendingWrite != null) {
+            try {
+                pendingWrite.get();
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch(ExecutionException ex) {
+                System.out.println("Unable to write the checkpoint " + file + ": " + ex.getCause());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        awaitWrite();
+        writer.shutdown();
+    }
+}
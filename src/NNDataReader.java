@@ -0,0 +1,252 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+
+/**
+ * Streams a data file line by line straight out of a memory mapped view of the file. Lines are trimmed the same way
+ * String.trim() would and recognised as labels by comparing bytes, and comma separated values are parsed directly
+ * from the mapped bytes, so reading the bulk of a data file does not create a single String or boxed Double. Files of
+ * any size are read through a window that slides along the file. {@link NNStreamReader} reads streams the same way,
+ * sharing the static helpers below.
+ * @author Jason Gould
+ */
+class NNDataReader implements Closeable {
+    //returned for a line that is not one of the labels
+    static final String NOT_A_LABEL = "";
+    private static final long WINDOW_SIZE = 64L << 20;
+    //mantissas below 2^53 and powers of ten up to 10^22 are exact doubles, so one multiply or divide rounds correctly
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = new double[23];
+    private final FileChannel channel;
+    private final long fileSize;
+    private final String[] labels;
+    private final byte[][] labelBytes;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int position;
+    private int lineStart;
+    private int lineEnd;
+    private int lineNumber;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for(int power = 1; power < POWERS_OF_TEN.length; power++) {
+            POWERS_OF_TEN[power] = POWERS_OF_TEN[power - 1] * 10;
+        }
+    }
+
+    NNDataReader(Path file, Collection<String> _labels) throws IOException {
+        labels = _labels.toArray(new String[0]);
+        labelBytes = new byte[labels.length][];
+        for(int index = 0; index < labels.length; index++) {
+            labelBytes[index] = labels[index].getBytes(StandardCharsets.US_ASCII);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        fileSize = channel.size();
+        mapWindow(0);
+    }
+
+    int getLineNumber() { return lineNumber; }
+
+    /**
+     * Moves on to the next line of the file.
+     * @return the label the line holds, {@link #NOT_A_LABEL} if it holds anything else, or null at the end of the file
+     */
+    String nextLine() throws IOException {
+        if(windowStart + position >= fileSize) {
+            return null;
+        }
+
+        int newline = findNewline(position);
+        if(newline < 0 && windowStart + window.limit() < fileSize) {
+            //the line runs past the end of the window, so slide the window up to the start of the line
+            mapWindow(windowStart + position);
+            newline = findNewline(position);
+            if(newline < 0 && windowStart + window.limit() < fileSize) {
+                throw new IOException("Error: Malformed Data file. Line " + (lineNumber + 1) + " is longer than " +
+                        WINDOW_SIZE + " bytes");
+            }
+        }
+        int end = newline < 0 ? window.limit() : newline;
+        lineNumber++;
+        lineStart = skipLeadingWhitespace(window, position, end);
+        lineEnd = skipTrailingWhitespace(window, lineStart, end);
+        position = newline < 0 ? window.limit() : newline + 1;
+
+        return matchLabel(window, lineStart, lineEnd, labels, labelBytes);
+    }
+
+    /**
+     * Returns the current line as a String, for the few single value lines that are parsed as text.
+     */
+    String lineText() {
+        byte[] bytes = new byte[lineEnd - lineStart];
+        window.get(lineStart, bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Parses the comma separated values on the current line into values starting at offset. Empty fields are skipped.
+     * Values that do not fit in the array are counted but not stored, so a caller can report how many there were.
+     * @return the number of values on the line
+     */
+    int readValues(double[] values, int offset) throws IOException {
+        return readValues(window, lineStart, lineEnd, values, offset, values.length, lineNumber);
+    }
+
+    /**
+     * Parses the comma separated values in buffer from lineStart up to lineEnd into values starting at offset,
+     * counting but not storing any at or past end. Empty fields are skipped.
+     * @return the number of values on the line
+     */
+    static int readValues(ByteBuffer buffer, int lineStart, int lineEnd, double[] values, int offset, int end,
+                          int lineNumber) throws IOException {
+        int numValues = 0;
+        int fieldStart = lineStart;
+        while(fieldStart <= lineEnd) {
+            int fieldEnd = fieldStart;
+            while(fieldEnd < lineEnd && buffer.get(fieldEnd) != ',') {
+                fieldEnd++;
+            }
+            int valueStart = skipLeadingWhitespace(buffer, fieldStart, fieldEnd);
+            int valueEnd = skipTrailingWhitespace(buffer, valueStart, fieldEnd);
+            if(valueStart < valueEnd) {
+                double value = parseValue(buffer, valueStart, valueEnd, lineNumber);
+                if(offset + numValues < end) {
+                    values[offset + numValues] = value;
+                }
+                numValues++;
+            }
+            fieldStart = fieldEnd + 1;
+        }
+        return numValues;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void mapWindow(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, fileSize - start));
+        position = 0;
+    }
+
+    private int findNewline(int from) {
+        int limit = window.limit();
+        for(int index = from; index < limit; index++) {
+            if(window.get(index) == '\n') {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    static int skipLeadingWhitespace(ByteBuffer buffer, int start, int end) {
+        while(start < end && (buffer.get(start) & 0xff) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    static int skipTrailingWhitespace(ByteBuffer buffer, int start, int end) {
+        while(end > start && (buffer.get(end - 1) & 0xff) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Returns the label held in buffer from lineStart up to lineEnd, or {@link #NOT_A_LABEL}.
+     */
+    static String matchLabel(ByteBuffer buffer, int lineStart, int lineEnd, String[] labels, byte[][] labelBytes) {
+        int length = lineEnd - lineStart;
+        for(int index = 0; index < labels.length; index++) {
+            byte[] label = labelBytes[index];
+            if(label.length != length) {
+                continue;
+            }
+            int offset = 0;
+            while(offset < length && buffer.get(lineStart + offset) == label[offset]) {
+                offset++;
+            }
+            if(offset == length) {
+                return labels[index];
+            }
+        }
+        return NOT_A_LABEL;
+    }
+
+    /**
+     * Parses a plain decimal number such as -12.5 or 3e-2 directly from the bytes. Anything the fast path cannot
+     * convert exactly is handed to Double.parseDouble.
+     */
+    private static double parseValue(ByteBuffer buffer, int start, int end, int lineNumber) throws IOException {
+        int index = start;
+        boolean negative = false;
+        if(buffer.get(index) == '-' || buffer.get(index) == '+') {
+            negative = buffer.get(index) == '-';
+            index++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        boolean digitRead = false;
+        boolean exact = true;
+        byte current;
+        while(index < end && (current = buffer.get(index)) >= '0' && current <= '9') {
+            mantissa = mantissa * 10 + (current - '0');
+            exact &= mantissa < MAX_EXACT_MANTISSA;
+            digitRead = true;
+            index++;
+        }
+        if(index < end && buffer.get(index) == '.') {
+            index++;
+            while(index < end && (current = buffer.get(index)) >= '0' && current <= '9') {
+                mantissa = mantissa * 10 + (current - '0');
+                exact &= mantissa < MAX_EXACT_MANTISSA;
+                exponent--;
+                digitRead = true;
+                index++;
+            }
+        }
+        if(digitRead && index < end && (buffer.get(index) == 'e' || buffer.get(index) == 'E')) {
+            index++;
+            boolean negativeExponent = false;
+            if(index < end && (buffer.get(index) == '-' || buffer.get(index) == '+')) {
+                negativeExponent = buffer.get(index) == '-';
+                index++;
+            }
+            int explicitExponent = 0;
+            boolean exponentDigitRead = false;
+            while(index < end && (current = buffer.get(index)) >= '0' && current <= '9') {
+                explicitExponent = Math.min(explicitExponent * 10 + (current - '0'), 10000);
+                exponentDigitRead = true;
+                index++;
+            }
+            exact &= exponentDigitRead;
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+
+        if(exact && digitRead && index == end && Math.abs(exponent) < POWERS_OF_TEN.length) {
+            double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        String text = new String(bytes, StandardCharsets.US_ASCII);
+        try {
+            return Double.parseDouble(text);
+        } catch(NumberFormatException ex) {
+            throw new IOException("Error: Malformed Data file. Invalid value '" + text + "' on line " + lineNumber);
+        }
+    }
+}
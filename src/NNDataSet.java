@@ -1,67 +1,53 @@
 /**
- * Class which holds both a data set that is used to train a neural network as well as the values achieved at both
- * the hidden and output layers when run through a neural network.
+ * Class which holds a data set that is used to train a neural network. The values achieved at the hidden and output
+ * layers when the set is run through a network live in that network's {@link NNWorkspace} rather than here.
  * @author Jason Gould
  */
 public class NNDataSet {
-    private Double[] inputNeuronValue;
-    private Double[] hiddenNeuronValue;
-    private Double[] hiddenNeuronRawValue;
-    private Double[] outputNeuronValue;
-    private Double[] outputNeuronRawValue;
-    private Double[] desiredOutputValue;
+    private double[] inputNeuronValue;
+    private double[] desiredOutputValue;
     private int numInputs;
-    private int numHidden;
-    private int numOutputs;
 
-    NNDataSet(Double[] _inputNeuronValue, Double[] _desiredOutputValue,  int _numInputs, int _numOutputs, int _numHidden) {
+    NNDataSet(double[] _inputNeuronValue, double[] _desiredOutputValue, int _numInputs) {
         numInputs = _numInputs;
-        numHidden = _numHidden;
-        numOutputs = _numOutputs;
         inputNeuronValue = _inputNeuronValue;
         desiredOutputValue = _desiredOutputValue;
-        hiddenNeuronValue = new Double[numHidden+1];
-        hiddenNeuronRawValue = new Double[numHidden];
-        outputNeuronValue = new Double[numOutputs];
-        outputNeuronRawValue = new Double[numOutputs];
 
         inputNeuronValue[numInputs] = 1.0;
-        hiddenNeuronValue[numHidden] = 1.0;
     }
 
-    Double[] getInputNeuronValue() { return inputNeuronValue; }
-    Double[] getHiddenNeuronValue() { return hiddenNeuronValue; }
-    Double[] getHiddenNeuronRawValue() { return hiddenNeuronRawValue; }
-    Double[] getOutputNeuronValue() { return outputNeuronValue; }
-    Double[] getOutputNeuronRawValue() { return outputNeuronRawValue; }
-    Double[] getDesiredOutputValue() { return desiredOutputValue; }
-    void reset() {
-        hiddenNeuronValue = new Double[numHidden+1];
-        hiddenNeuronValue[numHidden] = 1.0;
-        hiddenNeuronRawValue = new Double[numHidden];
-        outputNeuronValue = new Double[numOutputs];
-        outputNeuronRawValue = new Double[numOutputs];
-    }
+    double[] getInputNeuronValue() { return inputNeuronValue; }
+    double[] getDesiredOutputValue() { return desiredOutputValue; }
 
     @Override
     public String toString() {
+        return toString(null);
+    }
+
+    /**
+     * Formats the data set alongside the output values a network produced for it.
+     * @param outputNeuronValue output layer values for this set starting at index 0, or null to leave them out
+     */
+    String toString(double[] outputNeuronValue) {
         StringBuilder outputString = new StringBuilder();
         outputString.append("Inputs:  \t[");
         for(int index = 0; index < numInputs; index++) {
-            outputString.append(inputNeuronValue[index].toString());
+            outputString.append(inputNeuronValue[index]);
             outputString.append(", ");
         }
         outputString.replace(outputString.length()-2, outputString.length(), "");
         outputString.append("]\n");
-        outputString.append("Outputs:\t[");
-        for(Double output: outputNeuronValue) {
-            outputString.append(String.format("%1$.2f, ", output));
+        if(outputNeuronValue != null) {
+            outputString.append("Outputs:\t[");
+            for (int index = 0; index < desiredOutputValue.length; index++) {
+                outputString.append(String.format("%1$.2f, ", outputNeuronValue[index]));
+            }
+            outputString.replace(outputString.length() - 2, outputString.length(), "");
+            outputString.append("]\n");
         }
-        outputString.replace(outputString.length()-2, outputString.length(), "");
-        outputString.append("]\n");
         outputString.append("Desired:\t[");
-        for(Double desired: desiredOutputValue) {
-            outputString.append(desired.toString());
+        for(double desired: desiredOutputValue) {
+            outputString.append(desired);
             outputString.append(", ");
         }
         outputString.replace(outputString.length()-2, outputString.length(), "");
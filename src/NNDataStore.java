@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read only storage for the inputs and desired outputs of every data set, packed as one row of numInputs inputs
+ * followed by numOutputs desired outputs per set. The rows either live in an array on the heap or are memory mapped
+ * from a data cache file, in which case the data never has to fit in the heap and the operating system pages it in
+ * as training walks through it. Values are stored as doubles, or in single precision as floats, which halves the
+ * memory and bandwidth the data takes; they are widened back to doubles as they are copied out. Data sets are
+ * referred to by their index, and their values are copied out into a workspace when they are needed. When most
+ * inputs are zero, as with binary and one-hot features, the nonzero inputs can also be indexed as compressed sparse
+ * rows, so that the network only ever multiplies those. A store can be shared freely between threads once it has been
+ * indexed.
+ * @author Jason Gould
+ */
+class NNDataStore {
+    //each mapping must stay below 2GB, so larger files are mapped as several chunks of whole rows
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+    //inputs are only indexed as sparse rows when at most this portion of them is nonzero
+    private static final double MAX_SPARSE_DENSITY = 0.5;
+    private final int numInputs;
+    private final int numOutputs;
+    private final int numSets;
+    private final int rowLength;
+    //exactly one of these is used, depending on the precision
+    private final DoubleBuffer[] doubleChunks;
+    private final FloatBuffer[] floatChunks;
+    private final int setsPerChunk;
+    //null unless the inputs are indexed as sparse rows: the nonzero inputs of set s are at sparseIndices and
+    //sparseValues from sparseStarts[s] up to sparseStarts[s+1]
+    private int[] sparseStarts;
+    private int[] sparseIndices;
+    private double[] sparseValues;
+
+    /**
+     * Creates a store over packed rows of doubles held on the heap.
+     */
+    NNDataStore(int _numInputs, int _numOutputs, int _numSets, double[] _values) {
+        this(_numInputs, _numOutputs, _numSets, new DoubleBuffer[] {DoubleBuffer.wrap(_values)}, null,
+             Math.max(1, _numSets));
+    }
+
+    /**
+     * Creates a single precision store over packed rows of floats held on the heap.
+     */
+    NNDataStore(int _numInputs, int _numOutputs, int _numSets, float[] _values) {
+        this(_numInputs, _numOutputs, _numSets, null, new FloatBuffer[] {FloatBuffer.wrap(_values)},
+             Math.max(1, _numSets));
+    }
+
+    private NNDataStore(int _numInputs, int _numOutputs, int _numSets, DoubleBuffer[] _doubleChunks,
+                        FloatBuffer[] _floatChunks, int _setsPerChunk) {
+        numInputs = _numInputs;
+        numOutputs = _numOutputs;
+        numSets = _numSets;
+        rowLength = numInputs + numOutputs;
+        doubleChunks = _doubleChunks;
+        floatChunks = _floatChunks;
+        setsPerChunk = _setsPerChunk;
+    }
+
+    /**
+     * Creates a store over packed little endian rows that start at offset in a file, holding floats in single
+     * precision and doubles otherwise. The mapping stays valid after the channel is closed.
+     */
+    static NNDataStore map(FileChannel channel, long offset, int numInputs, int numOutputs, int numSets,
+                           boolean singlePrecision) throws IOException {
+        long rowBytes = (long)(numInputs + numOutputs) * (singlePrecision ? Float.BYTES : Double.BYTES);
+        int setsPerChunk = (int)Math.max(1, Math.min(numSets, MAX_CHUNK_BYTES / rowBytes));
+        int numChunks = numSets == 0 ? 0 : (numSets + setsPerChunk - 1) / setsPerChunk;
+        DoubleBuffer[] doubleChunks = singlePrecision ? null : new DoubleBuffer[numChunks];
+        FloatBuffer[] floatChunks = singlePrecision ? new FloatBuffer[numChunks] : null;
+        for(int chunk = 0; chunk < numChunks; chunk++) {
+            int chunkSets = Math.min(setsPerChunk, numSets - chunk * setsPerChunk);
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY,
+                    offset + chunk * setsPerChunk * rowBytes, chunkSets * rowBytes).order(ByteOrder.LITTLE_ENDIAN);
+            if(singlePrecision) {
+                floatChunks[chunk] = bytes.asFloatBuffer();
+            } else {
+                doubleChunks[chunk] = bytes.asDoubleBuffer();
+            }
+        }
+        return new NNDataStore(numInputs, numOutputs, numSets, doubleChunks, floatChunks, setsPerChunk);
+    }
+
+    int getNumSets() { return numSets; }
+    int getNumInputs() { return numInputs; }
+    int getNumOutputs() { return numOutputs; }
+    boolean isSinglePrecision() { return floatChunks != null; }
+    boolean hasSparseInputs() { return sparseStarts != null; }
+
+    /**
+     * Indexes the nonzero inputs of every data set as compressed sparse rows, if at most half of all inputs are
+     * nonzero and the index fits comfortably in the heap. This reads through every data set, so it is done once,
+     * when the data is loaded and before the store is shared.
+     * @return true if the inputs are now indexed
+     */
+    boolean indexSparseInputs() {
+        long maxNonzero = (long)(MAX_SPARSE_DENSITY * numInputs * numSets);
+        //an index that would crowd out training is not worth having
+        maxNonzero = Math.min(maxNonzero, Math.min(Integer.MAX_VALUE - 8,
+                Runtime.getRuntime().maxMemory() / 4 / (Integer.BYTES + Double.BYTES)));
+        double[] inputs = new double[numInputs];
+        long numNonzero = 0;
+        for(int set = 0; set < numSets; set++) {
+            copyInputs(set, inputs, 0);
+            for(double input: inputs) {
+                numNonzero += input != 0 ? 1 : 0;
+            }
+            if(numNonzero > maxNonzero) {
+                return false;
+            }
+        }
+
+        int[] starts = new int[numSets + 1];
+        int[] indices = new int[(int)numNonzero];
+        double[] values = new double[(int)numNonzero];
+        int position = 0;
+        for(int set = 0; set < numSets; set++) {
+            starts[set] = position;
+            copyInputs(set, inputs, 0);
+            for(int input = 0; input < numInputs; input++) {
+                if(inputs[input] != 0) {
+                    indices[position] = input;
+                    values[position] = inputs[input];
+                    position++;
+                }
+            }
+        }
+        starts[numSets] = position;
+        sparseStarts = starts;
+        sparseIndices = indices;
+        sparseValues = values;
+        return true;
+    }
+
+    /**
+     * Copies the inputs of a data set into values starting at offset.
+     */
+    void copyInputs(int set, double[] values, int offset) {
+        copyValues(set, 0, values, offset, numInputs);
+    }
+
+    /**
+     * Copies the nonzero inputs of a data set, in order, into indices and values starting at offset. The inputs must
+     * have been indexed with {@link #indexSparseInputs()}.
+     * @return the number of nonzero inputs copied
+     */
+    int copySparseInputs(int set, int[] indices, double[] values, int offset) {
+        int start = sparseStarts[set];
+        int numNonzero = sparseStarts[set + 1] - start;
+        System.arraycopy(sparseIndices, start, indices, offset, numNonzero);
+        System.arraycopy(sparseValues, start, values, offset, numNonzero);
+        return numNonzero;
+    }
+
+    /**
+     * Copies the desired outputs of a data set into values starting at offset.
+     */
+    void copyDesiredOutputs(int set, double[] values, int offset) {
+        copyValues(set, numInputs, values, offset, numOutputs);
+    }
+
+    private void copyValues(int set, int rowOffset, double[] values, int offset, int length) {
+        int position = (set % setsPerChunk) * rowLength + rowOffset;
+        if(floatChunks == null) {
+            doubleChunks[set / setsPerChunk].get(position, values, offset, length);
+        } else {
+            FloatBuffer chunk = floatChunks[set / setsPerChunk];
+            for(int index = 0; index < length; index++) {
+                values[offset + index] = chunk.get(position + index);
+            }
+        }
+    }
+
+    /**
+     * Copies a data set out of the store into a stand alone NNDataSet, for reporting.
+     */
+    NNDataSet getDataSet(int set) {
+        double[] inputValues = new double[numInputs+1];
+        double[] desiredOutputValues = new double[numOutputs];
+        copyInputs(set, inputValues, 0);
+        copyDesiredOutputs(set, desiredOutputValues, 0);
+        return new NNDataSet(inputValues, desiredOutputValues, numInputs);
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Collects data sets one at a time as they are loaded and turns them into an {@link NNDataStore}. The sets are either
+ * packed into a growing array on the heap, or streamed into a data cache file so that loading never holds more than
+ * a small buffer of them in memory. In single precision the values are narrowed to floats as they are added.
+ * @author Jason Gould
+ */
+class NNDataStoreWriter {
+    private static final int INITIAL_CAPACITY = 1024;
+    //a whole number of doubles and floats, so a value never straddles two writes
+    private static final int FILE_BUFFER_SIZE = 1 << 20;
+    private final int numInputs;
+    private final int numOutputs;
+    private final boolean singlePrecision;
+    private final FileChannel channel;
+    private final long offset;
+    private final ByteBuffer buffer;
+    //exactly one of these is used on the heap, depending on the precision
+    private double[] values;
+    private float[] floatValues;
+    private int numSets;
+
+    /**
+     * Creates a writer that keeps the data sets on the heap.
+     */
+    NNDataStoreWriter(int _numInputs, int _numOutputs, boolean _singlePrecision) {
+        numInputs = _numInputs;
+        numOutputs = _numOutputs;
+        singlePrecision = _singlePrecision;
+        channel = null;
+        offset = 0;
+        buffer = null;
+        if(singlePrecision) {
+            floatValues = new float[INITIAL_CAPACITY * (numInputs + numOutputs)];
+        } else {
+            values = new double[INITIAL_CAPACITY * (numInputs + numOutputs)];
+        }
+    }
+
+    /**
+     * Creates a writer that streams the data sets into a file as packed little endian rows starting at offset.
+     */
+    NNDataStoreWriter(int _numInputs, int _numOutputs, boolean _singlePrecision, FileChannel _channel, long _offset)
+            throws IOException {
+        numInputs = _numInputs;
+        numOutputs = _numOutputs;
+        singlePrecision = _singlePrecision;
+        channel = _channel;
+        offset = _offset;
+        buffer = ByteBuffer.allocateDirect(FILE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        channel.position(offset);
+    }
+
+    int getNumSets() { return numSets; }
+
+    /**
+     * Adds a data set. The arrays are copied, so the caller may reuse them for the next set.
+     */
+    void add(double[] inputValues, double[] desiredOutputValues) throws IOException {
+        if(channel == null) {
+            int rowLength = numInputs + numOutputs;
+            ensureCapacity((long)(numSets + 1) * rowLength);
+            if(singlePrecision) {
+                for(int index = 0; index < numInputs; index++) {
+                    floatValues[numSets * rowLength + index] = (float)inputValues[index];
+                }
+                for(int index = 0; index < numOutputs; index++) {
+                    floatValues[numSets * rowLength + numInputs + index] = (float)desiredOutputValues[index];
+                }
+            } else {
+                System.arraycopy(inputValues, 0, values, numSets * rowLength, numInputs);
+                System.arraycopy(desiredOutputValues, 0, values, numSets * rowLength + numInputs, numOutputs);
+            }
+        } else {
+            write(inputValues, numInputs);
+            write(desiredOutputValues, numOutputs);
+        }
+        numSets++;
+    }
+
+    /**
+     * Completes loading and returns the store holding every added data set.
+     */
+    NNDataStore finish() throws IOException {
+        if(channel == null) {
+            return singlePrecision ? new NNDataStore(numInputs, numOutputs, numSets, floatValues) :
+                    new NNDataStore(numInputs, numOutputs, numSets, values);
+        }
+        flush();
+        return NNDataStore.map(channel, offset, numInputs, numOutputs, numSets, singlePrecision);
+    }
+
+    private void ensureCapacity(long required) throws IOException {
+        int length = singlePrecision ? floatValues.length : values.length;
+        if(required <= length) {
+            return;
+        }
+        long capacity = Math.min((long)length * 2, Integer.MAX_VALUE - 8);
+        if(capacity < required) {
+            throw new IOException("Error: Data file is too large to hold in memory. Use --cache to train " +
+                    "from a memory mapped copy instead");
+        }
+        if(singlePrecision) {
+            floatValues = Arrays.copyOf(floatValues, (int)capacity);
+        } else {
+            values = Arrays.copyOf(values, (int)capacity);
+        }
+    }
+
+    private void write(double[] source, int count) throws IOException {
+        for(int index = 0; index < count; index++) {
+            if(!buffer.hasRemaining()) {
+                flush();
+            }
+            if(singlePrecision) {
+                buffer.putFloat((float)source[index]);
+            } else {
+                buffer.putDouble(source[index]);
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
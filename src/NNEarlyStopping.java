@@ -0,0 +1,76 @@
+/**
+ * Decides when a training run has stopped improving. Every evaluation of the generalization sets reports its loss;
+ * once patience evaluations in a row have failed to beat the lowest loss seen so far by at least a given fraction of
+ * it, training should stop, so a run whose loss is still creeping down by ever smaller amounts stops too. The weights
+ * behind the lowest loss can be kept as well, copied into buffers allocated once up front, so that a run which went on
+ * to overfit can be put back to its best point when it ends.
+ * @author Jason Gould
+ */
+final class NNEarlyStopping {
+    private final NeuralNetwork network;
+    //0 never stops training
+    private final int patience;
+    private final double minImprovement;
+    //null unless the best weights are being kept
+    private final double[][] bestWeights;
+    private double bestLoss;
+    private int bestIteration;
+    private int evaluationsSinceBest;
+
+    /**
+     * @param _patience number of evaluations in a row without a lower loss after which training stops, or 0 to never
+     *                  stop early
+     * @param _minImprovement fraction of the lowest loss so far that a loss must be below it by to count as lower
+     * @param keepBestWeights whether to copy the weights every time the loss improves, so that
+     *                        {@link #restoreBestWeights()} can put them back
+     */
+    NNEarlyStopping(NeuralNetwork _network, int _patience, double _minImprovement, boolean keepBestWeights) {
+        network = _network;
+        patience = _patience;
+        minImprovement = _minImprovement;
+        bestWeights = keepBestWeights ? network.copyWeights() : null;
+        bestLoss = Double.POSITIVE_INFINITY;
+        bestIteration = -1;
+    }
+
+    /**
+     * Records the generalization loss of the network after the given number of iterations.
+     * @return true if training should stop
+     */
+    boolean evaluated(int iteration, double loss) {
+        if(loss < bestLoss * (1 - minImprovement)) {
+            bestLoss = loss;
+            bestIteration = iteration;
+            evaluationsSinceBest = 0;
+            if(bestWeights != null) {
+                double[][] weights = network.getWeights();
+                for(int layer = 0; layer < weights.length; layer++) {
+                    System.arraycopy(weights[layer], 0, bestWeights[layer], 0, weights[layer].length);
+                }
+            }
+            return false;
+        }
+        evaluationsSinceBest++;
+        return patience > 0 && evaluationsSinceBest >= patience;
+    }
+
+    double getBestLoss() { return bestLoss; }
+    int getBestIteration() { return bestIteration; }
+
+    /**
+     * Copies the weights with the lowest loss seen back into the network, unless they are the weights it already has.
+     * @return false if the best weights are not being kept or the network already has them
+     */
+    boolean restoreBestWeights() {
+        if(bestWeights == null || evaluationsSinceBest == 0) {
+            return false;
+        }
+        double[][] weights = network.getWeights();
+        for(int layer = 0; layer < weights.length; layer++) {
+            System.arraycopy(bestWeights[layer], 0, weights[layer], 0, weights[layer].length);
+        }
+        network.weightsChanged();
+        evaluationsSinceBest = 0;
+        return true;
+    }
+}
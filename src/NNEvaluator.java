@@ -0,0 +1,170 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Measures how accurately a neural network evaluates a group of data sets. Evaluation only reads the network's
+ * weights, so the sets are split into contiguous shards that workers run through the network in parallel, each with
+ * its own workspace, tally and list of incorrectly evaluated sets. Nothing is shared between workers until their
+ * results are merged in shard order, which gives the same answer as evaluating the sets one after another.
+ * @author Jason Gould
+ */
+class NNEvaluator {
+    private static final double INVALID_RESULT = -1;
+    //below this many sets per worker, handing the work to other threads costs more than it saves
+    private static final int MIN_SETS_PER_WORKER = 16;
+    private final NeuralNetwork network;
+    private final int numOutputs;
+    private final ForkJoinPool pool;
+    private final EvaluationTask[] evaluationTasks;
+    private int[] incorrectSets;
+    private int numIncorrectSets;
+    private double loss;
+
+    /**
+     * @param _pool pool to evaluate on, or null to always evaluate on the calling thread
+     */
+    NNEvaluator(NeuralNetwork _network, int _numOutputs, ForkJoinPool _pool) {
+        network = _network;
+        numOutputs = _numOutputs;
+        pool = _pool;
+        int numWorkers = pool == null ? 1 : pool.getParallelism();
+        evaluationTasks = new EvaluationTask[numWorkers];
+        for(int worker = 0; worker < numWorkers; worker++) {
+            evaluationTasks[worker] = new EvaluationTask(network.newWorkspace(1));
+        }
+        incorrectSets = new int[0];
+    }
+
+    /**
+     * Returns the portion of all outputs of the given sets that the network evaluates correctly. Every set with at
+     * least one incorrect output is remembered, in the order the sets were given, until the next evaluation, as is
+     * the mean squared error of the outputs.
+     */
+    double calcAccuracy(NNDataStore data, int[] setsToEval) {
+        int numShards = Math.min(evaluationTasks.length, Math.max(1, setsToEval.length / MIN_SETS_PER_WORKER));
+        int shardSize = setsToEval.length / numShards;
+        int remainder = setsToEval.length % numShards;
+        int shardStart = 0;
+        for(int shard = 0; shard < numShards; shard++) {
+            int shardSets = shardSize + (shard < remainder ? 1 : 0);
+            evaluationTasks[shard].prepare(data, setsToEval, shardStart, shardSets);
+            shardStart += shardSets;
+        }
+
+        if(numShards == 1) {
+            evaluationTasks[0].invoke();
+        } else {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(List.of(evaluationTasks).subList(0, numShards));
+                }
+            });
+        }
+
+        double totalCorrectOutputs = 0;
+        double totalSquaredError = 0;
+        numIncorrectSets = 0;
+        for(int shard = 0; shard < numShards; shard++) {
+            EvaluationTask task = evaluationTasks[shard];
+            totalCorrectOutputs += task.correctOutputs;
+            totalSquaredError += task.squaredError;
+            incorrectSets = ensureCapacity(incorrectSets, numIncorrectSets + task.numIncorrectSets);
+            System.arraycopy(task.incorrectSets, 0, incorrectSets, numIncorrectSets, task.numIncorrectSets);
+            numIncorrectSets += task.numIncorrectSets;
+        }
+        loss = totalSquaredError / (double)(setsToEval.length * numOutputs);
+        return totalCorrectOutputs / (double)(setsToEval.length * numOutputs);
+    }
+
+    /**
+     * Returns the mean squared error of every output of the last evaluation.
+     */
+    double getLoss() { return loss; }
+
+    int getNumIncorrectSets() { return numIncorrectSets; }
+
+    /**
+     * Returns the data set index of one of the sets the last evaluation got wrong.
+     */
+    int getIncorrectSet(int index) { return incorrectSets[index]; }
+
+    static double clamp(double value) {
+        double result;
+        if(value < .1) {
+            result = 0;
+        } else if (value > .90) {
+            result = 1;
+        } else {
+            result = INVALID_RESULT;
+        }
+
+        return result;
+    }
+
+    private static int[] ensureCapacity(int[] values, int capacity) {
+        return values.length >= capacity ? values : Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+    }
+
+    /**
+     * Evaluates one contiguous shard of sets with a workspace and result tally of its own.
+     */
+    //tasks are reused in place and never serialized
+    @SuppressWarnings("serial")
+    private final class EvaluationTask extends RecursiveAction {
+        private final NNWorkspace workspace;
+        private NNDataStore data;
+        private int[] setsToEval;
+        private int firstSet;
+        private int numSets;
+        private int correctOutputs;
+        private double squaredError;
+        private int[] incorrectSets;
+        private int numIncorrectSets;
+
+        EvaluationTask(NNWorkspace _workspace) {
+            workspace = _workspace;
+            incorrectSets = new int[0];
+        }
+
+        void prepare(NNDataStore _data, int[] _setsToEval, int _firstSet, int _numSets) {
+            reinitialize();
+            data = _data;
+            setsToEval = _setsToEval;
+            firstSet = _firstSet;
+            numSets = _numSets;
+            correctOutputs = 0;
+            squaredError = 0;
+            numIncorrectSets = 0;
+        }
+
+        @Override
+        protected void compute() {
+            double[] outputValues = workspace.getOutputNeuronValue();
+            double[] desiredValues = workspace.getDesiredOutputValue();
+            boolean setOutputAccurate;
+
+            for(int setIndex = firstSet; setIndex < firstSet + numSets; setIndex++) {
+                int set = setsToEval[setIndex];
+                setOutputAccurate = true;
+                network.process(data, set, workspace);
+                for(int valueIndex = 0; valueIndex < numOutputs; valueIndex++) {
+                    double error = desiredValues[valueIndex] - outputValues[valueIndex];
+                    squaredError += error * error;
+                    if (clamp(outputValues[valueIndex]) == desiredValues[valueIndex]) {
+                        correctOutputs++;
+                    } else {
+                        setOutputAccurate = false;
+                    }
+                }
+
+                if(!setOutputAccurate) {
+                    incorrectSets = ensureCapacity(incorrectSets, numIncorrectSets + 1);
+                    incorrectSets[numIncorrectSets++] = set;
+                }
+            }
+        }
+    }
+}
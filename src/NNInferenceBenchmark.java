@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures how fast a saved network can be served by the inference engine. Every thread calls the engine in a tight
+ * loop with its own rows of random 0/1 inputs for a fixed amount of time, after a warm up period of the same length,
+ * timing every call. The benchmark reports the combined number of calls and rows per second along with the latency
+ * of single calls. The engine runs in double precision unless float is given.
+ * <pre>
+ *   java NNInferenceBenchmark &lt;model file&gt; [threads] [rows per call] [seconds] [double|float]
+ * </pre>
+ * @author Jason Gould
+ */
+public class NNInferenceBenchmark {
+    private static final int DEFAULT_ROWS_PER_CALL = 1;
+    private static final int DEFAULT_SECONDS = 5;
+    //distinct input rows each thread cycles through, so calls do not all hit the same cached row
+    private static final int NUM_INPUT_ROWS = 4096;
+    //latencies of the most recent calls of each thread that are kept for the percentiles
+    private static final int MAX_LATENCY_SAMPLES = 1 << 20;
+
+    public static void main(String[] args) throws InterruptedException {
+        assert(args.length > 0);
+
+        NNInferenceEngine engine = null;
+        try {
+            engine = NNInferenceEngine.load(Paths.get(args[0]), args.length >= 5 && args[4].equals("float"));
+        } catch(IOException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+            System.exit(1);
+        }
+        int numThreads = args.length >= 2 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int rowsPerCall = args.length >= 3 ? Integer.parseInt(args[2]) : DEFAULT_ROWS_PER_CALL;
+        int seconds = args.length >= 4 ? Integer.parseInt(args[3]) : DEFAULT_SECONDS;
+
+        System.out.printf("%1$s, %2$d inputs, %3$d outputs, %4$d thread(s), %5$d row(s) per call, %6$s\n\n",
+                args[0], engine.getNumInputs(), engine.getNumOutputs(), numThreads, rowsPerCall,
+                engine.isSinglePrecision() ? "float" : "double");
+        //the first run only warms up the JIT
+        runThreads(engine, numThreads, rowsPerCall, seconds);
+        Worker[] workers = runThreads(engine, numThreads, rowsPerCall, seconds);
+
+        long totalCalls = 0;
+        int numSamples = 0;
+        for(Worker worker: workers) {
+            totalCalls += worker.numCalls;
+            numSamples += (int)Math.min(worker.numCalls, MAX_LATENCY_SAMPLES);
+        }
+        long[] latencies = new long[numSamples];
+        int sampleIndex = 0;
+        for(Worker worker: workers) {
+            int workerSamples = (int)Math.min(worker.numCalls, MAX_LATENCY_SAMPLES);
+            System.arraycopy(worker.latencies, 0, latencies, sampleIndex, workerSamples);
+            sampleIndex += workerSamples;
+        }
+        Arrays.sort(latencies);
+
+        System.out.printf("%1$-16s %2$16.0f\n", "Calls/sec", totalCalls / (double)seconds);
+        System.out.printf("%1$-16s %2$16.0f\n", "Rows/sec", totalCalls * (double)rowsPerCall / seconds);
+        System.out.printf("%1$-16s %2$14.2f us\n", "Mean latency",
+                Arrays.stream(latencies).average().orElse(0) / 1e3);
+        System.out.printf("%1$-16s %2$14.2f us\n", "p50 latency", percentile(latencies, 0.5) / 1e3);
+        System.out.printf("%1$-16s %2$14.2f us\n", "p99 latency", percentile(latencies, 0.99) / 1e3);
+        System.out.printf("%1$-16s %2$14.2f us\n", "p99.9 latency", percentile(latencies, 0.999) / 1e3);
+        System.out.printf("%1$-16s %2$14.2f us\n", "Max latency", percentile(latencies, 1.0) / 1e3);
+    }
+
+    private static Worker[] runThreads(NNInferenceEngine engine, int numThreads, int rowsPerCall, int seconds)
+            throws InterruptedException {
+        long endTime = System.nanoTime() + seconds * 1_000_000_000L;
+        Worker[] workers = new Worker[numThreads];
+        Thread[] threads = new Thread[numThreads];
+        for(int index = 0; index < numThreads; index++) {
+            workers[index] = new Worker(engine, rowsPerCall, endTime, index);
+            threads[index] = new Thread(workers[index]);
+            threads[index].start();
+        }
+        for(Thread thread: threads) {
+            thread.join();
+        }
+        return workers;
+    }
+
+    private static long percentile(long[] sortedValues, double fraction) {
+        if(sortedValues.length == 0) {
+            return 0;
+        }
+        return sortedValues[(int)Math.min(sortedValues.length - 1, Math.ceil(fraction * sortedValues.length) - 1)];
+    }
+
+    /**
+     * Calls the engine until the end time, keeping the latency of every call in a ring of samples.
+     */
+    private static final class Worker implements Runnable {
+        private final NNInferenceEngine engine;
+        private final int rowsPerCall;
+        private final long endTime;
+        private final double[] inputs;
+        private final double[] outputs;
+        private final long[] latencies;
+        private long numCalls;
+
+        Worker(NNInferenceEngine _engine, int _rowsPerCall, long _endTime, long seed) {
+            engine = _engine;
+            rowsPerCall = _rowsPerCall;
+            endTime = _endTime;
+            Random randomGenerator = new Random(seed);
+            inputs = new double[(NUM_INPUT_ROWS + rowsPerCall) * engine.getNumInputs()];
+            for(int index = 0; index < inputs.length; index++) {
+                inputs[index] = randomGenerator.nextInt(2);
+            }
+            outputs = new double[rowsPerCall * engine.getNumOutputs()];
+            latencies = new long[MAX_LATENCY_SAMPLES];
+        }
+
+        @Override
+        public void run() {
+            int row = 0;
+            long now = System.nanoTime();
+            while(now < endTime) {
+                engine.predict(inputs, row * engine.getNumInputs(), rowsPerCall, outputs, 0);
+                long finished = System.nanoTime();
+                latencies[(int)(numCalls % MAX_LATENCY_SAMPLES)] = finished - now;
+                numCalls++;
+                row = (row + rowsPerCall) % NUM_INPUT_ROWS;
+                now = finished;
+            }
+        }
+    }
+}
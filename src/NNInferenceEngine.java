@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Runs a trained neural network on inputs alone, separate from everything needed to train it. The engine takes its own
+ * copy of the network's weights when it is created and never changes them, so training can carry on with the original
+ * network while the engine serves the weights it was given. Every thread gets its own workspace the first time it
+ * calls the engine, after which inference does not allocate, so any number of threads may share one engine. Rows of
+ * inputs are run through the network in blocks of up to BLOCK_SIZE rows at a time using the matrix-matrix kernels.
+ * <p>
+ * In single precision the engine runs its network on the network's own single precision path, which multiplies float
+ * copies of the weights and keeps every layer's values as floats, halving the memory the weights and layer values
+ * take and the bandwidth the kernels need. Inputs and outputs are still passed as doubles and converted at the edges.
+ * @author Jason Gould
+ */
+final class NNInferenceEngine {
+    //large enough to keep the matrix kernels busy, small enough for a block of layer values to stay in cache
+    private static final int BLOCK_SIZE = 64;
+    private final NeuralNetwork network;
+    private final ThreadLocal<NNWorkspace> workspaces;
+
+    NNInferenceEngine(NeuralNetwork trainedNetwork) {
+        this(trainedNetwork, false);
+    }
+
+    NNInferenceEngine(NeuralNetwork trainedNetwork, boolean singlePrecision) {
+        network = new NeuralNetwork(trainedNetwork.getLayerSizes(), trainedNetwork.getLearningRate(), 1,
+                                    trainedNetwork.copyWeights());
+        network.setFastActivation(trainedNetwork.isFastActivation());
+        network.setSinglePrecision(singlePrecision);
+        workspaces = ThreadLocal.withInitial(() -> network.newWorkspace(BLOCK_SIZE));
+    }
+
+    /**
+     * Creates an engine serving a network saved with {@link NNModelFile#save(NeuralNetwork, Path)}.
+     */
+    static NNInferenceEngine load(Path modelFile) throws IOException {
+        return load(modelFile, false);
+    }
+
+    /**
+     * Creates an engine serving a network saved with {@link NNModelFile#save(NeuralNetwork, Path)}, running it in
+     * single precision if asked to.
+     */
+    static NNInferenceEngine load(Path modelFile, boolean singlePrecision) throws IOException {
+        return new NNInferenceEngine(NNModelFile.load(modelFile, 1), singlePrecision);
+    }
+
+    /**
+     * Replaces the engine's weights with a copy of the given ones, which must be shaped like those of the network it
+     * was created from. Must not be called while any thread is running the engine.
+     */
+    void setWeights(double[][] weights) {
+        double[][] engineWeights = network.getWeights();
+        for(int layer = 0; layer < weights.length; layer++) {
+            System.arraycopy(weights[layer], 0, engineWeights[layer], 0, weights[layer].length);
+        }
+        network.weightsChanged();
+    }
+
+    int getNumInputs() { return network.getNumInputs(); }
+    int getNumOutputs() { return network.getNumOutputs(); }
+    boolean isSinglePrecision() { return network.isSinglePrecision(); }
+
+    /**
+     * Returns the outputs of a single row of inputs in a new array.
+     */
+    double[] predict(double[] inputs) {
+        double[] outputs = new double[network.getNumOutputs()];
+        predict(inputs, 0, 1, outputs, 0);
+        return outputs;
+    }
+
+    /**
+     * Runs numRows rows of inputs through the network without allocating.
+     * @param inputs numRows rows of getNumInputs() values each, starting at inputOffset
+     * @param outputs receives numRows rows of getNumOutputs() values each, starting at outputOffset
+     */
+    void predict(double[] inputs, int inputOffset, int numRows, double[] outputs, int outputOffset) {
+        assert(inputOffset + numRows * network.getNumInputs() <= inputs.length);
+        assert(outputOffset + numRows * network.getNumOutputs() <= outputs.length);
+        network.predict(inputs, inputOffset, numRows, outputs, outputOffset, workspaces.get());
+    }
+}
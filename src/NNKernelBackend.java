@@ -0,0 +1,45 @@
+/**
+ * The innermost loops of the dense kernels in {@link NNKernels}: the dot product used when multiplying by a transposed
+ * matrix, and the scaled row addition (y += alpha * x) that every other matrix product and weight update is built
+ * from, in double, single and mixed precision, along with the rounding of doubles to floats that keeps the float
+ * copies of the weights up to date. NNKernels picks one backend when it is first used, either its own scalar loops or
+ * SIMD loops from the JDK Vector API, and calls it from every kernel.
+ * @author Jason Gould
+ */
+interface NNKernelBackend {
+    /**
+     * Returns a short description of the backend for benchmark output.
+     */
+    String getName();
+
+    /**
+     * Returns the dot product of length values of a starting at aOffset and b starting at bOffset.
+     */
+    double dot(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    /**
+     * Single precision version of {@link #dot(double[], int, double[], int, int)}.
+     */
+    float dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    /**
+     * Adds alpha times length values of x starting at xOffset onto y starting at yOffset.
+     */
+    void addScaled(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length);
+
+    /**
+     * Single precision version of {@link #addScaled(double, double[], int, double[], int, int)}.
+     */
+    void addScaled(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length);
+
+    /**
+     * Mixed precision version of {@link #addScaled(double, double[], int, double[], int, int)}, widening each float of
+     * x to a double before it is scaled and added.
+     */
+    void addScaled(double alpha, float[] x, int xOffset, double[] y, int yOffset, int length);
+
+    /**
+     * Rounds length values of source starting at offset to floats and stores them at the same offset in target.
+     */
+    void narrow(double[] source, float[] target, int offset, int length);
+}
@@ -0,0 +1,407 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Dense linear algebra kernels used by the neural network. Matrices are stored as flat row-major arrays; a weight
+ * matrix is indexed [feed][result], i.e. the weight from feed node f to result node r lives at f * numResults + r,
+ * and a batch of layer values is indexed [set][node]. A single data set is simply a batch with one row. Every kernel
+ * walks its arrays with unit stride in the innermost loop and tiles the outer loops so the block being reused stays in
+ * cache, which keeps the inner loops simple enough for the JIT to unroll and vectorize. Those inner loops are left to a
+ * {@link NNKernelBackend}: the scalar loops below, or SIMD loops from the JDK Vector API when the incubator module was
+ * added to both the compiler and the JVM (see NNVectorKernels). Running with -Dnn.kernels=scalar forces the scalar
+ * loops even then. The SIMD dot product sums in a different order, so its results can differ in the last bits.
+ * Single precision training multiplies float matrices, moving half the memory and filling twice the SIMD lanes, but
+ * accumulates the weight gradients into double matrices, so those kernels mix the two precisions.
+ * @author Jason Gould
+ */
+final class NNKernels {
+    //number of result columns handled per block; 512 doubles is 4KB, well inside any L1 cache
+    private static final int BLOCK_SIZE = 512;
+    //number of shared/feed rows per block, so a BLOCK_SIZE wide tile of the right hand matrix is 128KB of L2
+    private static final int SHARED_BLOCK_SIZE = 32;
+    //doubles that comfortably fit in a 32KB L1 data cache
+    private static final int L1_DOUBLES = 4096;
+    private static final VarHandle DOUBLE_ELEMENTS = MethodHandles.arrayElementVarHandle(double[].class);
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+    private static final String VECTOR_BACKEND_CLASS = "NNVectorKernels";
+    //a constant, so the JIT inlines the backend's loops straight into every kernel
+    private static final NNKernelBackend BACKEND = selectBackend();
+
+    private NNKernels() {}
+
+    static NNKernelBackend getBackend() { return BACKEND; }
+
+    static NNKernelBackend newScalarBackend() { return new ScalarBackend(); }
+
+    /**
+     * Creates the Vector API backend.
+     * @return null if the incubator module is not in the JVM or NNVectorKernels was not compiled
+     */
+    static NNKernelBackend newVectorBackend() {
+        if(ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) {
+            return null;
+        }
+        try {
+            return (NNKernelBackend)Class.forName(VECTOR_BACKEND_CLASS).getDeclaredConstructor().newInstance();
+        } catch(ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+    }
+
+    private static NNKernelBackend selectBackend() {
+        NNKernelBackend vectorBackend = "scalar".equals(System.getProperty("nn.kernels")) ? null : newVectorBackend();
+        return vectorBackend != null ? vectorBackend : newScalarBackend();
+    }
+
+    /**
+     * Computes c = a * b, where a is [numRows][numShared], b is [numShared][numColumns] and c is [numRows][numColumns].
+     */
+    static void multiply(double[] a, int numRows, int numShared, double[] b, double[] c, int numColumns) {
+        for(int columnStart = 0; columnStart < numColumns; columnStart += BLOCK_SIZE) {
+            int columnEnd = Math.min(columnStart + BLOCK_SIZE, numColumns);
+            for(int row = 0; row < numRows; row++) {
+                int rowOffset = row * numColumns;
+                for(int column = columnStart; column < columnEnd; column++) {
+                    c[rowOffset + column] = 0;
+                }
+            }
+            for(int sharedStart = 0; sharedStart < numShared; sharedStart += SHARED_BLOCK_SIZE) {
+                int sharedEnd = Math.min(sharedStart + SHARED_BLOCK_SIZE, numShared);
+                for(int row = 0; row < numRows; row++) {
+                    int aOffset = row * numShared;
+                    int cOffset = row * numColumns;
+                    for(int shared = sharedStart; shared < sharedEnd; shared++) {
+                        BACKEND.addScaled(a[aOffset + shared], b, shared * numColumns + columnStart, c,
+                                          cOffset + columnStart, columnEnd - columnStart);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Single precision version of {@link #multiply(double[], int, int, double[], double[], int)}. Twice as many floats
+     * fit in a cache line or vector register, so it moves half the memory of the double version.
+     */
+    static void multiply(float[] a, int numRows, int numShared, float[] b, float[] c, int numColumns) {
+        for(int columnStart = 0; columnStart < numColumns; columnStart += BLOCK_SIZE) {
+            int columnEnd = Math.min(columnStart + BLOCK_SIZE, numColumns);
+            for(int row = 0; row < numRows; row++) {
+                int rowOffset = row * numColumns;
+                for(int column = columnStart; column < columnEnd; column++) {
+                    c[rowOffset + column] = 0;
+                }
+            }
+            for(int sharedStart = 0; sharedStart < numShared; sharedStart += SHARED_BLOCK_SIZE) {
+                int sharedEnd = Math.min(sharedStart + SHARED_BLOCK_SIZE, numShared);
+                for(int row = 0; row < numRows; row++) {
+                    int aOffset = row * numShared;
+                    int cOffset = row * numColumns;
+                    for(int shared = sharedStart; shared < sharedEnd; shared++) {
+                        BACKEND.addScaled(a[aOffset + shared], b, shared * numColumns + columnStart, c,
+                                          cOffset + columnStart, columnEnd - columnStart);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes c = a * b like {@link #multiply(double[], int, int, double[], double[], int)}, for an a given as
+     * compressed sparse rows: row r of a holds aValues[k] in column aIndices[k] for every k from aStarts[r] up to
+     * aStarts[r+1], and is zero everywhere else. Only the rows of b matching those entries are read, and the sums are
+     * taken in the same order as the dense kernel, so the results are identical to it.
+     */
+    static void sparseMultiply(int[] aStarts, int[] aIndices, double[] aValues, int numRows, double[] b, double[] c,
+                               int numColumns) {
+        for(int columnStart = 0; columnStart < numColumns; columnStart += BLOCK_SIZE) {
+            int columnEnd = Math.min(columnStart + BLOCK_SIZE, numColumns);
+            for(int row = 0; row < numRows; row++) {
+                int cOffset = row * numColumns;
+                Arrays.fill(c, cOffset + columnStart, cOffset + columnEnd, 0);
+                for(int entry = aStarts[row]; entry < aStarts[row+1]; entry++) {
+                    BACKEND.addScaled(aValues[entry], b, aIndices[entry] * numColumns + columnStart, c,
+                                      cOffset + columnStart, columnEnd - columnStart);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes c = a * transpose(b), where a is [numRows][numShared], b is at least [numColumns][numShared] and c is
+     * [numRows][numColumns]. Only the first numColumns rows of b are read.
+     */
+    static void multiplyTransposed(double[] a, int numRows, int numShared, double[] b, double[] c, int numColumns) {
+        int columnsPerBlock = Math.max(1, L1_DOUBLES / Math.max(1, numShared));
+        for(int columnStart = 0; columnStart < numColumns; columnStart += columnsPerBlock) {
+            int columnEnd = Math.min(columnStart + columnsPerBlock, numColumns);
+            for(int row = 0; row < numRows; row++) {
+                int aOffset = row * numShared;
+                int cOffset = row * numColumns;
+                for(int column = columnStart; column < columnEnd; column++) {
+                    c[cOffset + column] = dot(a, aOffset, b, column * numShared, numShared);
+                }
+            }
+        }
+    }
+
+    /**
+     * Single precision version of {@link #multiplyTransposed(double[], int, int, double[], double[], int)}.
+     */
+    static void multiplyTransposed(float[] a, int numRows, int numShared, float[] b, float[] c, int numColumns) {
+        int columnsPerBlock = Math.max(1, 2 * L1_DOUBLES / Math.max(1, numShared));
+        for(int columnStart = 0; columnStart < numColumns; columnStart += columnsPerBlock) {
+            int columnEnd = Math.min(columnStart + columnsPerBlock, numColumns);
+            for(int row = 0; row < numRows; row++) {
+                int aOffset = row * numShared;
+                int cOffset = row * numColumns;
+                for(int column = columnStart; column < columnEnd; column++) {
+                    c[cOffset + column] = BACKEND.dot(a, aOffset, b, column * numShared, numShared);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes c = decay * c + scale * transpose(a) * b, where a is [numRows][numShared], b is [numRows][numColumns]
+     * and c is [numShared][numColumns]. With a single row this is the rank one update of a weight matrix.
+     */
+    static void transposedMultiply(double[] a, int numRows, int numShared, double[] b, double[] c, int numColumns,
+                                   double scale, double decay) {
+        for(int columnStart = 0; columnStart < numColumns; columnStart += BLOCK_SIZE) {
+            int columnEnd = Math.min(columnStart + BLOCK_SIZE, numColumns);
+            for(int sharedStart = 0; sharedStart < numShared; sharedStart += SHARED_BLOCK_SIZE) {
+                int sharedEnd = Math.min(sharedStart + SHARED_BLOCK_SIZE, numShared);
+                scaleTile(c, numColumns, sharedStart, sharedEnd, columnStart, columnEnd, decay);
+                for(int row = 0; row < numRows; row++) {
+                    int aOffset = row * numShared;
+                    int bOffset = row * numColumns;
+                    for(int shared = sharedStart; shared < sharedEnd; shared++) {
+                        BACKEND.addScaled(scale * a[aOffset + shared], b, bOffset + columnStart, c,
+                                          shared * numColumns + columnStart, columnEnd - columnStart);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Mixed precision version of {@link #transposedMultiply(double[], int, int, double[], double[], int, double,
+     * double)}, for single precision layer values and error deltas. The products are taken and summed into c in
+     * double precision, so small gradients are not lost to rounding as they accumulate over a mini-batch.
+     */
+    static void transposedMultiply(float[] a, int numRows, int numShared, float[] b, double[] c, int numColumns,
+                                   double scale, double decay) {
+        for(int columnStart = 0; columnStart < numColumns; columnStart += BLOCK_SIZE) {
+            int columnEnd = Math.min(columnStart + BLOCK_SIZE, numColumns);
+            for(int sharedStart = 0; sharedStart < numShared; sharedStart += SHARED_BLOCK_SIZE) {
+                int sharedEnd = Math.min(sharedStart + SHARED_BLOCK_SIZE, numShared);
+                scaleTile(c, numColumns, sharedStart, sharedEnd, columnStart, columnEnd, decay);
+                for(int row = 0; row < numRows; row++) {
+                    int aOffset = row * numShared;
+                    int bOffset = row * numColumns;
+                    for(int shared = sharedStart; shared < sharedEnd; shared++) {
+                        BACKEND.addScaled(scale * a[aOffset + shared], b, bOffset + columnStart, c,
+                                          shared * numColumns + columnStart, columnEnd - columnStart);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Single precision version of {@link #sparseMultiply(int[], int[], double[], int, double[], double[], int)}. The
+     * sparse values are rounded to floats as they are used.
+     */
+    static void sparseMultiply(int[] aStarts, int[] aIndices, double[] aValues, int numRows, float[] b, float[] c,
+                               int numColumns) {
+        for(int columnStart = 0; columnStart < numColumns; columnStart += BLOCK_SIZE) {
+            int columnEnd = Math.min(columnStart + BLOCK_SIZE, numColumns);
+            for(int row = 0; row < numRows; row++) {
+                int cOffset = row * numColumns;
+                Arrays.fill(c, cOffset + columnStart, cOffset + columnEnd, 0);
+                for(int entry = aStarts[row]; entry < aStarts[row+1]; entry++) {
+                    BACKEND.addScaled((float)aValues[entry], b, aIndices[entry] * numColumns + columnStart, c,
+                                      cOffset + columnStart, columnEnd - columnStart);
+                }
+            }
+        }
+    }
+
+    /**
+     * Mixed precision version of {@link #sparseTransposedMultiply(int[], int[], double[], int, int, double[],
+     * double[], int, double, double)}, for single precision error deltas, summing into c in double precision.
+     */
+    static void sparseTransposedMultiply(int[] aStarts, int[] aIndices, double[] aValues, int numRows, int numShared,
+                                         float[] b, double[] c, int numColumns, double scale, double decay) {
+        for(int columnStart = 0; columnStart < numColumns; columnStart += BLOCK_SIZE) {
+            int columnEnd = Math.min(columnStart + BLOCK_SIZE, numColumns);
+            scaleTile(c, numColumns, 0, numShared, columnStart, columnEnd, decay);
+            for(int row = 0; row < numRows; row++) {
+                int bOffset = row * numColumns;
+                for(int entry = aStarts[row]; entry < aStarts[row+1]; entry++) {
+                    BACKEND.addScaled(scale * aValues[entry], b, bOffset + columnStart, c,
+                                      aIndices[entry] * numColumns + columnStart, columnEnd - columnStart);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes c = decay * c + scale * transpose(a) * b like
+     * {@link #transposedMultiply(double[], int, int, double[], double[], int, double, double)}, for an a given as
+     * compressed sparse rows as in {@link #sparseMultiply(int[], int[], double[], int, double[], double[], int)}. Only
+     * the rows of c matching the entries of a are added to, though every row is still scaled by decay, and the results
+     * are identical to the dense kernel.
+     */
+    static void sparseTransposedMultiply(int[] aStarts, int[] aIndices, double[] aValues, int numRows, int numShared,
+                                         double[] b, double[] c, int numColumns, double scale, double decay) {
+        for(int columnStart = 0; columnStart < numColumns; columnStart += BLOCK_SIZE) {
+            int columnEnd = Math.min(columnStart + BLOCK_SIZE, numColumns);
+            scaleTile(c, numColumns, 0, numShared, columnStart, columnEnd, decay);
+            for(int row = 0; row < numRows; row++) {
+                int bOffset = row * numColumns;
+                for(int entry = aStarts[row]; entry < aStarts[row+1]; entry++) {
+                    BACKEND.addScaled(scale * aValues[entry], b, bOffset + columnStart, c,
+                                      aIndices[entry] * numColumns + columnStart, columnEnd - columnStart);
+                }
+            }
+        }
+    }
+
+    private static void scaleTile(double[] c, int numColumns, int rowStart, int rowEnd,
+                                  int columnStart, int columnEnd, double factor) {
+        if(factor == 1.0) {
+            return;
+        }
+        for(int row = rowStart; row < rowEnd; row++) {
+            int offset = row * numColumns;
+            if(factor == 0) {
+                //a plain store so that stale NaNs or infinities cannot leak through a multiply by zero
+                Arrays.fill(c, offset + columnStart, offset + columnEnd, 0);
+            } else {
+                for (int column = columnStart; column < columnEnd; column++) {
+                    c[offset + column] *= factor;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the dot product of length values of a starting at aOffset and b starting at bOffset.
+     */
+    static double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return BACKEND.dot(a, aOffset, b, bOffset, length);
+    }
+
+    /**
+     * Rounds every value of source to a float and stores it in the matching entry of target.
+     */
+    static void narrow(double[] source, float[] target) {
+        BACKEND.narrow(source, target, 0, source.length);
+    }
+
+    /**
+     * Multiplies every entry of target by factor.
+     */
+    static void scale(double[] target, double factor) {
+        if(factor == 0) {
+            Arrays.fill(target, 0);
+            return;
+        }
+        for(int index = 0; index < target.length; index++) {
+            target[index] *= factor;
+        }
+    }
+
+    /**
+     * Adds every value onto the matching entry of target.
+     */
+    static void add(double[] target, double[] values) {
+        BACKEND.addScaled(1.0, values, 0, target, 0, target.length);
+    }
+
+    /**
+     * Adds every value onto the matching entry of a target that other threads read and update at the same time
+     * without locking. Concurrent updates to the same entry may be lost, which asynchronous training tolerates. Each
+     * entry is read and written here with opaque accesses, which are atomic even for doubles, but that only covers this
+     * side: threads reading the target with plain array reads, as the feed forward does, are allowed by the Java memory
+     * model (JLS 17.7) to see a torn double. 64-bit JVMs such as HotSpot never tear aligned doubles in practice.
+     */
+    static void addShared(double[] target, double[] values) {
+        for(int index = 0; index < target.length; index++) {
+            double current = (double) DOUBLE_ELEMENTS.getOpaque(target, index);
+            DOUBLE_ELEMENTS.setOpaque(target, index, current + values[index]);
+        }
+    }
+
+    /**
+     * Plain loops, used whenever the Vector API is not available.
+     */
+    private static final class ScalarBackend implements NNKernelBackend {
+        @Override
+        public String getName() {
+            return "scalar";
+        }
+
+        @Override
+        public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+            //two accumulators break the dependency chain between consecutive multiply-adds
+            double sumEven = 0;
+            double sumOdd = 0;
+            int index = 0;
+            for(; index + 1 < length; index += 2) {
+                sumEven += a[aOffset + index] * b[bOffset + index];
+                sumOdd += a[aOffset + index + 1] * b[bOffset + index + 1];
+            }
+            if(index < length) {
+                sumEven += a[aOffset + index] * b[bOffset + index];
+            }
+            return sumEven + sumOdd;
+        }
+
+        @Override
+        public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+            float sumEven = 0;
+            float sumOdd = 0;
+            int index = 0;
+            for(; index + 1 < length; index += 2) {
+                sumEven += a[aOffset + index] * b[bOffset + index];
+                sumOdd += a[aOffset + index + 1] * b[bOffset + index + 1];
+            }
+            if(index < length) {
+                sumEven += a[aOffset + index] * b[bOffset + index];
+            }
+            return sumEven + sumOdd;
+        }
+
+        @Override
+        public void addScaled(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+            for(int index = 0; index < length; index++) {
+                y[yOffset + index] += alpha * x[xOffset + index];
+            }
+        }
+
+        @Override
+        public void addScaled(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+            for(int index = 0; index < length; index++) {
+                y[yOffset + index] += alpha * x[xOffset + index];
+            }
+        }
+
+        @Override
+        public void addScaled(double alpha, float[] x, int xOffset, double[] y, int yOffset, int length) {
+            for(int index = 0; index < length; index++) {
+                y[yOffset + index] += alpha * x[xOffset + index];
+            }
+        }
+
+        @Override
+        public void narrow(double[] source, float[] target, int offset, int length) {
+            for(int index = offset; index < offset + length; index++) {
+                target[index] = (float)source[index];
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * How the learning rate changes over the epochs of a training run. Every schedule multiplies the base learning rate by
+ * factor^(epoch / interval), rounding epoch / interval down, so it is written as one of
+ * <pre>
+ *   constant         the base learning rate throughout
+ *   step:N:F         multiply the learning rate by F every N epochs
+ *   exponential:G    multiply the learning rate by G every epoch
+ * </pre>
+ * @author Jason Gould
+ */
+final class NNLearningRateSchedule {
+    static final NNLearningRateSchedule CONSTANT = new NNLearningRateSchedule("constant", 1, 1.0);
+    private final String spec;
+    private final int interval;
+    private final double factor;
+
+    private NNLearningRateSchedule(String _spec, int _interval, double _factor) {
+        spec = _spec;
+        interval = _interval;
+        factor = _factor;
+    }
+
+    /**
+     * Parses a schedule written as above.
+     * @return null if spec is not a schedule, or its interval is below 1 or its factor is not positive
+     */
+    static NNLearningRateSchedule parse(String spec) {
+        String[] parts = spec.split(":");
+        try {
+            if(parts.length == 1 && parts[0].equals("constant")) {
+                return CONSTANT;
+            } else if(parts.length == 3 && parts[0].equals("step")) {
+                int interval = Integer.parseInt(parts[1]);
+                double factor = Double.parseDouble(parts[2]);
+                return interval < 1 || !(factor > 0) ? null : new NNLearningRateSchedule(spec, interval, factor);
+            } else if(parts.length == 2 && parts[0].equals("exponential")) {
+                double factor = Double.parseDouble(parts[1]);
+                return !(factor > 0) ? null : new NNLearningRateSchedule(spec, 1, factor);
+            }
+        } catch(NumberFormatException ex) {
+            //falls through to reject the schedule
+        }
+        return null;
+    }
+
+    /**
+     * Recreates a schedule from the interval and factor recorded in a checkpoint.
+     */
+    static NNLearningRateSchedule of(int interval, double factor) {
+        if(factor == 1.0) {
+            return CONSTANT;
+        }
+        return new NNLearningRateSchedule(interval == 1 ? "exponential:" + factor : "step:" + interval + ":" + factor,
+                                          interval, factor);
+    }
+
+    int getInterval() { return interval; }
+    double getFactor() { return factor; }
+
+    /**
+     * Returns the learning rate for the given epoch, counted from 0.
+     */
+    double getRate(double baseRate, int epoch) {
+        return factor == 1.0 ? baseRate : baseRate * Math.pow(factor, epoch / interval);
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
@@ -0,0 +1,183 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes trained neural networks. The binary format is a fixed size header holding the input and output
+ * sizes, the number of hidden layers and the learning rate, then the width of every hidden layer padded to a whole
+ * number of doubles, followed by every weight matrix as packed little endian doubles in the network's own
+ * [feed][result] layout, so saving and loading are a bulk copy between the weight arrays and the file. Networks can
+ * also be exported as text in the same label/value style as the data files, for reading or comparing by hand.
+ * @author Jason Gould
+ */
+final class NNModelFile {
+    private static final int MODEL_MAGIC = 0x4E4E4D44;
+    private static final int MODEL_VERSION = 1;
+    private static final int MODEL_HEADER_SIZE = 32;
+
+    private NNModelFile() {}
+
+    /**
+     * Writes the network's sizes, learning rate and weights to file. The file is written next to its destination and
+     * moved into place once complete, so an interrupted save never leaves a truncated model behind.
+     */
+    static void save(NeuralNetwork network, Path file) throws IOException {
+        int[] hiddenSizes = network.getHiddenSizes();
+        int weightsStart = MODEL_HEADER_SIZE + hiddenSizesLength(hiddenSizes.length);
+        ByteBuffer buffer = ByteBuffer.allocate(weightsStart + (int)NeuralNetwork.countWeights(network.getLayerSizes())
+                                                * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MODEL_MAGIC).putInt(MODEL_VERSION).putInt(network.getNumInputs())
+              .putInt(network.getNumOutputs()).putInt(hiddenSizes.length).putInt(0)
+              .putDouble(network.getLearningRate());
+        for(int hiddenSize: hiddenSizes) {
+            buffer.putInt(hiddenSize);
+        }
+        DoubleBuffer weights = buffer.position(weightsStart).asDoubleBuffer();
+        for(double[] matrix: network.getWeights()) {
+            weights.put(matrix);
+        }
+        buffer.clear();
+
+        Path partialFile = Paths.get(file + ".tmp");
+        try(FileChannel channel = FileChannel.open(partialFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING)) {
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(partialFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a network saved with {@link #save(NeuralNetwork, Path)}, with a workspace for batches of up to batchSize
+     * data sets.
+     */
+    static NeuralNetwork load(Path file, int batchSize) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if(channel.size() < MODEL_HEADER_SIZE) {
+                throw new IOException("Error: Malformed Model file. " + file + " is too short to be a model");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                                       .order(ByteOrder.LITTLE_ENDIAN);
+            int magic = buffer.getInt();
+            int version = buffer.getInt();
+            if(magic != MODEL_MAGIC || version != MODEL_VERSION) {
+                throw new IOException("Error: Malformed Model file. " + file + " is not a model this version can read");
+            }
+            int numInputs = buffer.getInt();
+            int numOutputs = buffer.getInt();
+            int numHiddenLayers = buffer.getInt();
+            buffer.getInt();
+            double learningRate = buffer.getDouble();
+            if(numHiddenLayers < 1 || numHiddenLayers > (channel.size() - MODEL_HEADER_SIZE) / Double.BYTES) {
+                throw new IOException("Error: Malformed Model file. The size of " + file + " does not match the " +
+                        "number of hidden layers in its header");
+            }
+            int[] hiddenSizes = new int[numHiddenLayers];
+            buffer.asIntBuffer().get(hiddenSizes);
+            int weightsStart = MODEL_HEADER_SIZE + hiddenSizesLength(numHiddenLayers);
+            int[] layerSizes = NeuralNetwork.layerSizes(numInputs, hiddenSizes, numOutputs);
+            if(!validLayerSizes(layerSizes) ||
+                    channel.size() != weightsStart + NeuralNetwork.countWeights(layerSizes) * Double.BYTES) {
+                throw new IOException("Error: Malformed Model file. The size of " + file + " does not match the " +
+                        "layer sizes in its header");
+            }
+
+            double[][] weights = NeuralNetwork.newWeights(layerSizes);
+            DoubleBuffer values = buffer.position(weightsStart).asDoubleBuffer();
+            for(double[] matrix: weights) {
+                values.get(matrix);
+            }
+            return new NeuralNetwork(layerSizes, learningRate, batchSize, weights);
+        }
+    }
+
+    /**
+     * Writes the network as text, one line per feed node of each weight matrix with the bias node last. Every value
+     * is written in full, so the text holds exactly the same weights as the binary format.
+     */
+    static void exportText(NeuralNetwork network, Path file) throws IOException {
+        try(BufferedWriter writer = Files.newBufferedWriter(file)) {
+            writeLabel(writer, "NUM_INPUT", Integer.toString(network.getNumInputs()));
+            writeLabel(writer, "NUM_OUTPUT", Integer.toString(network.getNumOutputs()));
+            writeLabel(writer, "NUM_HIDDEN", formatHiddenSizes(network.getHiddenSizes()));
+            writeLabel(writer, "LEARNING_RATE", Double.toString(network.getLearningRate()));
+            int[] layerSizes = network.getLayerSizes();
+            double[][] weights = network.getWeights();
+            for(int layer = 0; layer < weights.length; layer++) {
+                if(layer == 0) {
+                    writer.write("WEIGHTS_INPUT_TO_HIDDEN");
+                } else if(layer == weights.length - 1) {
+                    writer.write("WEIGHTS_HIDDEN_TO_OUTPUT");
+                } else {
+                    writer.write("WEIGHTS_HIDDEN_TO_HIDDEN");
+                }
+                writer.newLine();
+                writeMatrix(writer, weights[layer], layerSizes[layer+1]);
+            }
+        }
+    }
+
+    /**
+     * Returns the widths of the hidden layers in the comma separated form NUM_HIDDEN takes in a data file.
+     */
+    static String formatHiddenSizes(int[] hiddenSizes) {
+        StringBuilder text = new StringBuilder();
+        for(int layer = 0; layer < hiddenSizes.length; layer++) {
+            text.append(layer == 0 ? "" : ",").append(hiddenSizes[layer]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns the number of bytes the widths of numHiddenLayers hidden layers take in a model or checkpoint file,
+     * padded so that the doubles after them stay aligned.
+     */
+    static int hiddenSizesLength(int numHiddenLayers) {
+        return (numHiddenLayers * Integer.BYTES + Double.BYTES - 1) / Double.BYTES * Double.BYTES;
+    }
+
+    /**
+     * Returns whether every layer has at least one node and the network is small enough to hold in arrays.
+     */
+    static boolean validLayerSizes(int[] layerSizes) {
+        for(int size: layerSizes) {
+            if(size < 1) {
+                return false;
+            }
+        }
+        for(int layer = 0; layer + 1 < layerSizes.length; layer++) {
+            if((long)(layerSizes[layer]+1) * layerSizes[layer+1] > Integer.MAX_VALUE - 8) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeLabel(BufferedWriter writer, String label, String value) throws IOException {
+        writer.write(label);
+        writer.newLine();
+        writer.write(value);
+        writer.newLine();
+    }
+
+    private static void writeMatrix(BufferedWriter writer, double[] matrix, int numColumns) throws IOException {
+        for(int rowStart = 0; rowStart < matrix.length; rowStart += numColumns) {
+            for(int column = 0; column < numColumns; column++) {
+                if(column > 0) {
+                    writer.write(", ");
+                }
+                writer.write(Double.toString(matrix[rowStart + column]));
+            }
+            writer.newLine();
+        }
+    }
+}
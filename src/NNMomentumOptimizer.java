@@ -0,0 +1,55 @@
+/**
+ * Gradient descent with classical momentum, the optimizer the network has always used. The accumulation buffers are
+ * the velocity: each batch adds learningRate times its gradient on top of momentum times the last velocity, and the
+ * velocity is then added to the weights. It needs no state beyond the buffers, and is the only optimizer asynchronous
+ * training can use, since every thread keeps its own velocity and adds it to the shared weights.
+ * @author Jason Gould
+ */
+final class NNMomentumOptimizer implements NNOptimizer {
+    static final double DEFAULT_MOMENTUM = .5;
+    private final double momentum;
+    private long step;
+
+    NNMomentumOptimizer(double _momentum) {
+        momentum = _momentum;
+    }
+
+    @Override
+    public String getName() {
+        return "momentum";
+    }
+
+    @Override
+    public Double getMomentum() {
+        return momentum;
+    }
+
+    @Override
+    public double getAccumulationScale(double learningRate) {
+        return learningRate;
+    }
+
+    @Override
+    public double getAccumulationDecay() {
+        return momentum;
+    }
+
+    @Override
+    public void update(double[][] weights, double[][] accumulated, double learningRate) {
+        for(int layer = 0; layer < weights.length; layer++) {
+            NNKernels.add(weights[layer], accumulated[layer]);
+        }
+        step++;
+    }
+
+    @Override
+    public double[][] getState() {
+        return new double[0][];
+    }
+
+    @Override
+    public long getStep() { return step; }
+
+    @Override
+    public void setStep(long _step) { step = _step; }
+}
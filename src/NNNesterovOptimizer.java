@@ -0,0 +1,63 @@
+/**
+ * Gradient descent with Nesterov momentum, which applies the gradient as if it had been taken after the momentum step,
+ * damping the overshoot of classical momentum. The accumulation buffers hold the plain averaged gradient g, and with
+ * velocity v each step is v = momentum * v + learningRate * g followed by w += momentum * v + learningRate * g.
+ * @author Jason Gould
+ */
+final class NNNesterovOptimizer implements NNOptimizer {
+    static final double DEFAULT_MOMENTUM = .9;
+    private final double momentum;
+    private final double[][] velocity;
+    private long step;
+
+    NNNesterovOptimizer(int[] layerSizes, double _momentum) {
+        momentum = _momentum;
+        velocity = NeuralNetwork.newWeights(layerSizes);
+    }
+
+    @Override
+    public String getName() {
+        return "nesterov";
+    }
+
+    @Override
+    public Double getMomentum() {
+        return momentum;
+    }
+
+    @Override
+    public double getAccumulationScale(double learningRate) {
+        return 1.0;
+    }
+
+    @Override
+    public double getAccumulationDecay() {
+        return 0;
+    }
+
+    @Override
+    public void update(double[][] weights, double[][] accumulated, double learningRate) {
+        for(int layer = 0; layer < weights.length; layer++) {
+            double[] layerWeights = weights[layer];
+            double[] gradient = accumulated[layer];
+            double[] layerVelocity = velocity[layer];
+            for(int index = 0; index < layerWeights.length; index++) {
+                double delta = learningRate * gradient[index];
+                layerVelocity[index] = momentum * layerVelocity[index] + delta;
+                layerWeights[index] += momentum * layerVelocity[index] + delta;
+            }
+        }
+        step++;
+    }
+
+    @Override
+    public double[][] getState() {
+        return velocity;
+    }
+
+    @Override
+    public long getStep() { return step; }
+
+    @Override
+    public void setStep(long _step) { step = _step; }
+}
@@ -0,0 +1,479 @@
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a saved network learning from data sets as they arrive while serving predictions from it at the same time.
+ * Data sets are read from standard input, or from any number of connections to a port on the loopback interface,
+ * written as DATA_SET, INPUT and DESIRED_OUTPUT records exactly as in a data file. A record is queued for training as
+ * soon as its last value has been read, and a single training thread runs each one through the network as on-line
+ * learning. A PREDICT line followed by a row of inputs asks for the network's outputs instead; they are written back
+ * as an OUTPUT line followed by the comma separated outputs, computed from the most recently published weights on the
+ * thread that read the request. Weights are published with {@link NNWeightPublisher} every --publish-interval data
+ * sets, and whenever training catches up with the data sets that have arrived, so predictions never see torn weights
+ * and never hold up training. Malformed records are reported on the stream they came from and skipped.
+ * <pre>
+ *   java NNOnlineService &lt;model file&gt; [--port N] [--save FILE] [--publish-interval N] [--learning-rate X]
+ *                        [--optimizer momentum|nesterov|rmsprop|adam] [--momentum X]
+ * </pre>
+ * When reading standard input the network is saved to the --save file, if any, once the input ends. When listening
+ * on a port the service runs until it is stopped, and saves the network as it shuts down. If training fails, the
+ * failure is reported, every reader is told that no more data sets can be queued and the service shuts down without
+ * saving the network.
+ * @author Jason Gould
+ */
+public class NNOnlineService {
+    private static final int DEFAULT_PUBLISH_INTERVAL = 32;
+    //data sets waiting to be trained on; readers wait for room when training falls this far behind
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final String PREDICT_LABEL = "PREDICT";
+    private static final String OUTPUT_LABEL = "OUTPUT";
+    private static final String TRAINING_FAILED_MESSAGE = "Error: Training has stopped and no more data sets can be " +
+            "queued";
+    private static final Set<String> LABELS = Set.of("NUM_INPUT", "NUM_OUTPUT", "NUM_HIDDEN", "LEARNING_RATE",
+            "BATCH_SIZE", "DATA_SET", "INPUT", "DESIRED_OUTPUT", PREDICT_LABEL);
+    //queued after the last data set to stop the training thread
+    private static final double[] END_OF_DATA = new double[0];
+    private final NeuralNetwork network;
+    private final int numInputs;
+    private final int numOutputs;
+    private final int publishInterval;
+    private final NNWeightPublisher publisher;
+    private final BlockingQueue<double[]> pendingSets;
+    //empty buffers for data sets, so that reading them does not allocate
+    private final BlockingQueue<double[]> freeSets;
+    private final Thread trainer;
+    private final LongAdder predictions;
+    private long setsTrained;
+    //set by the training thread if training fails, after which nothing more is trained
+    private volatile RuntimeException trainingFailure;
+    //only set while listening on a port
+    private volatile ServerSocket server;
+
+    NNOnlineService(NeuralNetwork _network, int _publishInterval) {
+        network = _network;
+        numInputs = network.getNumInputs();
+        numOutputs = network.getNumOutputs();
+        publishInterval = _publishInterval;
+        publisher = new NNWeightPublisher(network);
+        pendingSets = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        freeSets = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        for(int index = 0; index < QUEUE_CAPACITY; index++) {
+            freeSets.add(new double[numInputs + numOutputs]);
+        }
+        trainer = new Thread(this::train, "NN online trainer");
+        predictions = new LongAdder();
+    }
+
+    public static void main(String[] args) {
+        assert(args.length > 0);
+
+        Integer port = null;
+        String saveFileName = null;
+        int publishInterval = DEFAULT_PUBLISH_INTERVAL;
+        Double learningRate = null;
+        String optimizerName = null;
+        Double momentum = null;
+        for(int argIndex = 1; argIndex < args.length; argIndex += 2) {
+            String option = args[argIndex];
+            if(argIndex + 1 >= args.length) {
+                exitWithUsage("Missing value for option " + option);
+            }
+            String value = args[argIndex + 1];
+            try {
+                switch(option) {
+                    case "--port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--save":
+                        saveFileName = value;
+                        break;
+                    case "--publish-interval":
+                        publishInterval = Integer.parseInt(value);
+                        break;
+                    case "--learning-rate":
+                        learningRate = Double.parseDouble(value);
+                        break;
+                    case "--optimizer":
+                        optimizerName = value;
+                        break;
+                    case "--momentum":
+                        momentum = Double.parseDouble(value);
+                        break;
+                    default:
+                        exitWithUsage("Unknown option " + option);
+                }
+            } catch(NumberFormatException ex) {
+                exitWithUsage("Value for " + option + " must be a number: " + value);
+            }
+        }
+        if(publishInterval < 1 || (port != null && (port < 0 || port > 65535)) ||
+                (learningRate != null && !(learningRate > 0)) ||
+                (momentum != null && !(momentum >= 0 && momentum < 1))) {
+            exitWithUsage("--publish-interval must be at least 1, --port from 0 to 65535, --learning-rate above 0 " +
+                    "and --momentum at least 0 and below 1");
+        }
+
+        NeuralNetwork network = null;
+        try {
+            network = NNModelFile.load(Paths.get(args[0]), 1);
+        } catch(IOException ex) {
+            System.out.println(ex.getMessage());
+            ex.printStackTrace();
+            System.exit(1);
+        }
+        if(learningRate != null) {
+            network.setLearningRate(learningRate);
+        }
+        if(optimizerName != null || momentum != null) {
+            NNOptimizer optimizer = NNOptimizer.create(optimizerName == null ? NNOptimizer.NAMES.get(0) : optimizerName,
+                                                       network.getLayerSizes(), momentum);
+            if(optimizer == null || (momentum != null && optimizer.getMomentum() == null)) {
+                exitWithUsage("--optimizer must be one of " + String.join(", ", NNOptimizer.NAMES) + ", and only " +
+                        "momentum and nesterov take a --momentum");
+            }
+            network.setOptimizer(optimizer);
+        }
+
+        NNOnlineService service = new NNOnlineService(network, publishInterval);
+        service.start();
+        if(port == null) {
+            PrintWriter output = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.US_ASCII), true);
+            try {
+                service.serve(new NNStreamReader(System.in, LABELS), output);
+            } catch(IOException ex) {
+                System.out.println("Unable to read standard input: " + ex.getMessage());
+            }
+            if(!service.stop(saveFileName)) {
+                System.exit(1);
+            }
+        } else {
+            service.listen(port, saveFileName);
+        }
+    }
+
+    private static void exitWithUsage(String message) {
+        System.out.println(message);
+        System.out.println("Usage: NNOnlineService <model file> [--port N] [--save FILE] [--publish-interval N] " +
+                "[--learning-rate X] [--optimizer momentum|nesterov|rmsprop|adam] [--momentum X]");
+        System.exit(1);
+    }
+
+    void start() {
+        trainer.start();
+    }
+
+    /**
+     * Waits for every data set already read to be trained on, stops the training thread and saves the network to
+     * saveFileName unless it is null.
+     * @return false if training failed, in which case the network is not saved
+     */
+    boolean stop(String saveFileName) {
+        try {
+            pendingSets.put(END_OF_DATA);
+            trainer.join();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        System.out.printf("Trained on %1$d data set(s), served %2$d prediction(s), published %3$d version(s) of " +
+                "the weights\n", setsTrained, predictions.sum(), publisher.getVersion());
+        if(trainingFailure != null) {
+            System.out.println("The network was not saved, as training failed");
+            return false;
+        }
+        if(saveFileName != null) {
+            try {
+                NNModelFile.save(network, Paths.get(saveFileName));
+            } catch(IOException ex) {
+                System.out.println("Unable to save the trained network: " + ex.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Accepts connections on the loopback interface until the process is stopped, serving each on its own thread.
+     */
+    private void listen(int port, String saveFileName) {
+        try(ServerSocket listening = new ServerSocket(port, 0, InetAddress.getLoopbackAddress())) {
+            server = listening;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> stop(saveFileName), "NN online shutdown"));
+            System.out.println("Listening on " + listening.getInetAddress().getHostAddress() + ":" +
+                    listening.getLocalPort());
+            while(true) {
+                Socket socket = listening.accept();
+                Thread connection = new Thread(() -> serveConnection(socket), "NN online connection");
+                //an open connection never keeps the service from shutting down
+                connection.setDaemon(true);
+                connection.start();
+            }
+        } catch(IOException ex) {
+            //the training thread closes the socket when training fails, which has already been reported
+            if(trainingFailure == null) {
+                System.out.println("Unable to listen on port " + port + ": " + ex.getMessage());
+            }
+            System.exit(1);
+        }
+    }
+
+    private void serveConnection(Socket socket) {
+        try(Socket connection = socket) {
+            serve(new NNStreamReader(connection.getInputStream(), LABELS),
+                  new PrintWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.US_ASCII),
+                                  true));
+        } catch(IOException ex) {
+            //the client went away; anything it sent in full has already been queued
+        }
+    }
+
+    /**
+     * Reads records from input until it ends, queueing every complete data set for training and answering every
+     * prediction request on output. Reading data sets allocates nothing; only the answers to predictions and error
+     * reports are formatted as new Strings.
+     */
+    void serve(NNStreamReader input, PrintWriter output) throws IOException {
+        double[] dataSet = null;
+        double[] predictInputs = new double[numInputs];
+        double[] predictOutputs = new double[numOutputs];
+        //the field whose values are being read, or null between fields
+        String field = null;
+        int numValues = 0;
+        boolean inputRead = false;
+        boolean desiredOutputRead = false;
+        //set once a data set has been reported as malformed, until the next one starts
+        boolean skippingDataSet = false;
+
+        String line;
+        while((line = input.nextLine()) != null) {
+            int lineNumber = input.getLineNumber();
+            if(input.isLineBlank()) {
+                continue;
+            }
+            boolean label = !line.equals(NNDataReader.NOT_A_LABEL);
+            if(field != null && label) {
+                output.printf("Error: Malformed DataSet. Expected %1$d %2$s values but found %3$d before line %4$d\n",
+                        expectedValues(field), field, numValues, lineNumber);
+                field = null;
+                inputRead = false;
+                desiredOutputRead = false;
+            }
+            if(field == null) {
+                switch(line) {
+                    case "DATA_SET":
+                        if(inputRead != desiredOutputRead && !skippingDataSet) {
+                            output.printf("Error: Malformed DataSet. New DataSet encountered on line %1$d before " +
+                                    "the previous one was complete\n", lineNumber);
+                        }
+                        inputRead = false;
+                        desiredOutputRead = false;
+                        skippingDataSet = false;
+                        break;
+                    case "INPUT":
+                    case "DESIRED_OUTPUT":
+                    case PREDICT_LABEL:
+                        boolean repeated = line.equals("INPUT") ? inputRead :
+                                           line.equals("DESIRED_OUTPUT") && desiredOutputRead;
+                        if(repeated) {
+                            //as the file parser does, rather than letting the second replace the first
+                            output.printf("Error: Malformed DataSet. Second %1$s specified for a single DataSet on " +
+                                    "line %2$d\n", line.equals("INPUT") ? "input" : "desired output", lineNumber);
+                            inputRead = false;
+                            desiredOutputRead = false;
+                            skippingDataSet = true;
+                        }
+                        if(skippingDataSet && !line.equals(PREDICT_LABEL)) {
+                            //the values that follow are left unread, like those of any other unexpected line
+                            break;
+                        }
+                        field = line;
+                        numValues = 0;
+                        if(dataSet == null && !field.equals(PREDICT_LABEL)) {
+                            dataSet = takeFreeSet();
+                            if(dataSet == null) {
+                                output.println(TRAINING_FAILED_MESSAGE);
+                                return;
+                            }
+                        }
+                        break;
+                    default:
+                        //the other labels of a data file, and their values, say nothing about a single data set
+                        break;
+                }
+                continue;
+            }
+
+            double[] values = field.equals(PREDICT_LABEL) ? predictInputs : dataSet;
+            int offset = field.equals("DESIRED_OUTPUT") ? numInputs : 0;
+            int expected = expectedValues(field);
+            try {
+                numValues += input.readValues(values, offset + numValues, offset + expected);
+            } catch(IOException ex) {
+                output.printf("Error: Malformed DataSet. Invalid value on line %1$d\n", lineNumber);
+                field = null;
+                inputRead = false;
+                desiredOutputRead = false;
+                continue;
+            }
+            if(numValues > expected) {
+                output.printf("Error: Malformed DataSet. Expected %1$d %2$s values but found %3$d on line %4$d\n",
+                        expected, field, numValues, lineNumber);
+                field = null;
+                inputRead = false;
+                desiredOutputRead = false;
+            } else if(numValues == expected) {
+                if(field.equals(PREDICT_LABEL)) {
+                    publisher.predict(predictInputs, predictOutputs);
+                    predictions.increment();
+                    writeOutputs(output, predictOutputs);
+                } else {
+                    inputRead |= field.equals("INPUT");
+                    desiredOutputRead |= field.equals("DESIRED_OUTPUT");
+                    if(inputRead && desiredOutputRead) {
+                        boolean queued = queue(dataSet);
+                        dataSet = null;
+                        if(!queued) {
+                            output.println(TRAINING_FAILED_MESSAGE);
+                            return;
+                        }
+                        inputRead = false;
+                        desiredOutputRead = false;
+                    }
+                }
+                field = null;
+            }
+        }
+        if(dataSet != null) {
+            freeSets.add(dataSet);
+        }
+    }
+
+    private int expectedValues(String field) {
+        return field.equals("DESIRED_OUTPUT") ? numOutputs : numInputs;
+    }
+
+    private static void writeOutputs(PrintWriter output, double[] outputs) {
+        StringBuilder line = new StringBuilder(OUTPUT_LABEL).append('\n');
+        for(int index = 0; index < outputs.length; index++) {
+            line.append(index > 0 ? ", " : "").append(outputs[index]);
+        }
+        output.println(line);
+    }
+
+    /**
+     * Takes an empty buffer for the next data set, waiting for one if every buffer is in use.
+     * @return null if training has failed, in which case nothing more can be queued
+     */
+    private double[] takeFreeSet() {
+        if(trainingFailure != null) {
+            return null;
+        }
+        try {
+            return freeSets.take();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Queues a complete data set for training, waiting for room if training has fallen behind.
+     * @return false if training has failed, in which case the data set's buffer is handed back instead
+     */
+    private boolean queue(double[] dataSet) {
+        if(trainingFailure != null) {
+            freeSets.add(dataSet);
+            return false;
+        }
+        try {
+            pendingSets.put(dataSet);
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        }
+        return true;
+    }
+
+    /**
+     * Trains on queued data sets one at a time until the end of the data, publishing the weights every
+     * publishInterval data sets and whenever the queue runs dry. If training fails the failure is reported and the
+     * service shut down, see {@link #failTraining(RuntimeException)}.
+     */
+    private void train() {
+        int unpublished = 0;
+        double[] dataSet = null;
+        try {
+            while(true) {
+                dataSet = pendingSets.poll();
+                if(dataSet == null) {
+                    if(unpublished > 0) {
+                        publisher.publish();
+                        unpublished = 0;
+                    }
+                    dataSet = pendingSets.take();
+                }
+                if(dataSet == END_OF_DATA) {
+                    break;
+                }
+
+                network.train(dataSet, 0, dataSet, numInputs);
+                network.updateWeights();
+                freeSets.add(dataSet);
+                dataSet = null;
+                setsTrained++;
+                unpublished++;
+                if(unpublished >= publishInterval) {
+                    publisher.publish();
+                    unpublished = 0;
+                }
+            }
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch(RuntimeException ex) {
+            if(dataSet != null && dataSet != END_OF_DATA) {
+                freeSets.add(dataSet);
+            }
+            failTraining(ex);
+            return;
+        }
+        if(unpublished > 0) {
+            publisher.publish();
+        }
+    }
+
+    /**
+     * Reports a failure of the training thread and shuts the service down, rather than leaving readers waiting on
+     * queues nothing takes from. Readers are refused any further data sets, the port, if any, is closed so that the
+     * process exits, and every data set already queued is handed straight back until the end of the data is queued.
+     */
+    private void failTraining(RuntimeException failure) {
+        System.out.println("Training failed, shutting down: " + failure);
+        failure.printStackTrace();
+        trainingFailure = failure;
+        ServerSocket listening = server;
+        if(listening != null) {
+            try {
+                listening.close();
+            } catch(IOException ex) {
+                //the service is shutting down regardless
+            }
+        }
+        try {
+            double[] dataSet;
+            while((dataSet = pendingSets.take()) != END_OF_DATA) {
+                freeSets.add(dataSet);
+            }
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import java.util.List;
+
+/**
+ * Turns the gradients of each mini-batch into a change to the weights. While a batch is back propagated the network
+ * folds its gradient, averaged over the batch and pointing downhill, into an accumulation buffer per weight matrix as
+ * buffer = getAccumulationDecay() * buffer + getAccumulationScale(learningRate) * gradient, so plain momentum keeps
+ * its velocity in that buffer without another pass over the weights, and then hands the buffers to update. Any
+ * further state an optimizer keeps per weight lives in flat arrays shaped like the weight matrices, so that it can be
+ * checkpointed along with them.
+ * @author Jason Gould
+ */
+interface NNOptimizer {
+    //checkpoints record an optimizer by its position in this list, so new optimizers must be added at the end
+    List<String> NAMES = List.of("momentum", "nesterov", "rmsprop", "adam");
+
+    /**
+     * Creates the named optimizer for a network with the given layer sizes.
+     * @param momentum momentum for the optimizers that use it, or null for their default
+     * @return null if there is no optimizer by that name
+     */
+    static NNOptimizer create(String name, int[] layerSizes, Double momentum) {
+        switch(name) {
+            case "momentum":
+                return new NNMomentumOptimizer(momentum == null ? NNMomentumOptimizer.DEFAULT_MOMENTUM : momentum);
+            case "nesterov":
+                return new NNNesterovOptimizer(layerSizes,
+                        momentum == null ? NNNesterovOptimizer.DEFAULT_MOMENTUM : momentum);
+            case "rmsprop":
+                return new NNRMSPropOptimizer(layerSizes, NNRMSPropOptimizer.DEFAULT_DECAY);
+            case "adam":
+                return new NNAdamOptimizer(layerSizes, NNAdamOptimizer.DEFAULT_BETA1, NNAdamOptimizer.DEFAULT_BETA2);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the name the optimizer is created by, one of {@link #NAMES}.
+     */
+    String getName();
+
+    /**
+     * Returns the momentum the optimizer was created with, or null if it does not use momentum.
+     */
+    Double getMomentum();
+
+    /**
+     * Returns the factor the averaged gradient is multiplied by as it is added to the accumulation buffers.
+     */
+    double getAccumulationScale(double learningRate);
+
+    /**
+     * Returns the factor the accumulation buffers are multiplied by before the gradient of a new batch is added.
+     */
+    double getAccumulationDecay();
+
+    /**
+     * Applies one step to every weight matrix, using the matching accumulation buffers.
+     */
+    void update(double[][] weights, double[][] accumulated, double learningRate);
+
+    /**
+     * Returns the optimizer's state, one flat array per weight matrix for every kind of value it tracks per weight.
+     * The arrays are live, so a restored state can be copied straight into them.
+     */
+    double[][] getState();
+
+    /**
+     * Returns the number of steps taken, which some optimizers use to correct their early estimates.
+     */
+    long getStep();
+
+    void setStep(long step);
+}
@@ -0,0 +1,134 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Trains a neural network on several cores at once. Each mini-batch is split into contiguous shards, one per worker,
+ * and every worker runs its shard through the network with its own workspace and gradient buffers. The gradients are
+ * then summed in worker order before the weights are updated, so a run is reproducible for a given seed and thread
+ * count. For on-line learning the trainer can instead run asynchronously, with every worker updating the shared
+ * weights after each of its sets without any locking; those runs are not reproducible.
+ * @author Jason Gould
+ */
+class NNParallelTrainer {
+    //largest number of sets a worker pushes through the network at once
+    private static final int MAX_WORKER_BLOCK_SIZE = 256;
+    private final NeuralNetwork network;
+    private final ForkJoinPool pool;
+    private final NNWorkspace[] workspaces;
+    private final ShardTask[] shardTasks;
+    private final BatchTask batchTask;
+
+    NNParallelTrainer(NeuralNetwork _network, ForkJoinPool _pool, int _batchSize) {
+        network = _network;
+        pool = _pool;
+        int numWorkers = pool.getParallelism();
+        int shardSize = (_batchSize + numWorkers - 1) / numWorkers;
+        int workerBlockSize = Math.min(shardSize, MAX_WORKER_BLOCK_SIZE);
+        workspaces = new NNWorkspace[numWorkers];
+        shardTasks = new ShardTask[numWorkers];
+        for(int worker = 0; worker < numWorkers; worker++) {
+            workspaces[worker] = network.newWorkerWorkspace(workerBlockSize);
+            shardTasks[worker] = new ShardTask(workspaces[worker]);
+        }
+        batchTask = new BatchTask();
+    }
+
+    /**
+     * Runs numSets data sets starting at firstSet forward and backward through the network as a single mini-batch,
+     * spread over every worker. The error offsets are ready to be applied with {@link NeuralNetwork#updateWeights()}.
+     */
+    void trainBatch(NNDataStore data, int[] sets, int firstSet, int numSets) {
+        int numShards = runShards(data, sets, firstSet, numSets, false);
+        network.applyGradients(workspaces, numShards);
+    }
+
+    /**
+     * Runs one epoch of asynchronous on-line learning over the given sets. Each worker takes a contiguous shard and
+     * applies its own updates straight to the network's weights; there is nothing left to apply afterwards.
+     */
+    void trainAsync(NNDataStore data, int[] sets) {
+        runShards(data, sets, 0, sets.length, true);
+    }
+
+    private int runShards(NNDataStore data, int[] sets, int firstSet, int numSets, boolean async) {
+        int numShards = Math.min(shardTasks.length, numSets);
+        int shardSize = numSets / numShards;
+        int remainder = numSets % numShards;
+        int shardStart = firstSet;
+        for(int shard = 0; shard < numShards; shard++) {
+            int shardSets = shardSize + (shard < remainder ? 1 : 0);
+            shardTasks[shard].prepare(data, sets, shardStart, shardSets, numSets, async);
+            shardStart += shardSets;
+        }
+
+        batchTask.prepare(numShards);
+        pool.invoke(batchTask);
+        return numShards;
+    }
+
+    /**
+     * Runs every prepared shard, keeping the first one on the invoking worker.
+     */
+    //tasks are reused in place and never serialized
+    @SuppressWarnings("serial")
+    private final class BatchTask extends RecursiveAction {
+        private int numShards;
+
+        void prepare(int _numShards) {
+            reinitialize();
+            numShards = _numShards;
+        }
+
+        @Override
+        protected void compute() {
+            for(int shard = 1; shard < numShards; shard++) {
+                shardTasks[shard].fork();
+            }
+            shardTasks[0].invoke();
+            for(int shard = 1; shard < numShards; shard++) {
+                shardTasks[shard].join();
+            }
+        }
+    }
+
+    /**
+     * Calculates the gradients of one shard of a mini-batch into a worker's own workspace, or trains on the shard
+     * asynchronously.
+     */
+    //tasks are reused in place and never serialized
+    @SuppressWarnings("serial")
+    private final class ShardTask extends RecursiveAction {
+        private final NNWorkspace workspace;
+        private NNDataStore data;
+        private int[] sets;
+        private int firstSet;
+        private int numSets;
+        private int batchSize;
+        private boolean async;
+
+        ShardTask(NNWorkspace _workspace) {
+            workspace = _workspace;
+        }
+
+        void prepare(NNDataStore _data, int[] _sets, int _firstSet, int _numSets, int _batchSize, boolean _async) {
+            reinitialize();
+            data = _data;
+            sets = _sets;
+            firstSet = _firstSet;
+            numSets = _numSets;
+            batchSize = _batchSize;
+            async = _async;
+        }
+
+        @Override
+        protected void compute() {
+            if(async) {
+                for(int set = firstSet; set < firstSet + numSets; set++) {
+                    network.trainAsync(data, sets[set], workspace);
+                }
+            } else {
+                network.calcGradients(data, sets, firstSet, numSets, batchSize, workspace);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * RMSProp, which divides each weight's gradient by a running root mean square of its recent gradients, so that weights
+ * with small, consistent gradients move as fast as those with large ones. With the averaged gradient g and running
+ * mean square s, each step is s = decay * s + (1 - decay) * g^2 followed by
+ * w += learningRate * g / (sqrt(s) + epsilon).
+ * @author Jason Gould
+ */
+final class NNRMSPropOptimizer implements NNOptimizer {
+    static final double DEFAULT_DECAY = .9;
+    //keeps the step finite for weights that have never had a gradient
+    private static final double EPSILON = 1e-8;
+    private final double decay;
+    private final double[][] meanSquare;
+    private long step;
+
+    NNRMSPropOptimizer(int[] layerSizes, double _decay) {
+        decay = _decay;
+        meanSquare = NeuralNetwork.newWeights(layerSizes);
+    }
+
+    @Override
+    public String getName() {
+        return "rmsprop";
+    }
+
+    @Override
+    public Double getMomentum() {
+        return null;
+    }
+
+    @Override
+    public double getAccumulationScale(double learningRate) {
+        return 1.0;
+    }
+
+    @Override
+    public double getAccumulationDecay() {
+        return 0;
+    }
+
+    @Override
+    public void update(double[][] weights, double[][] accumulated, double learningRate) {
+        for(int layer = 0; layer < weights.length; layer++) {
+            double[] layerWeights = weights[layer];
+            double[] gradient = accumulated[layer];
+            double[] layerMeanSquare = meanSquare[layer];
+            for(int index = 0; index < layerWeights.length; index++) {
+                double value = gradient[index];
+                layerMeanSquare[index] = decay * layerMeanSquare[index] + (1 - decay) * value * value;
+                layerWeights[index] += learningRate * value / (Math.sqrt(layerMeanSquare[index]) + EPSILON);
+            }
+        }
+        step++;
+    }
+
+    @Override
+    public double[][] getState() {
+        return meanSquare;
+    }
+
+    @Override
+    public long getStep() { return step; }
+
+    @Override
+    public void setStep(long _step) { step = _step; }
+}
@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Reads ASCII text line by line from a stream, such as a socket or standard input, into a single buffer that is
+ * reused for every line. Lines are trimmed, recognised as labels and have their comma separated values parsed exactly
+ * as {@link NNDataReader} does for a mapped data file, so once the buffer has grown to hold the longest line, reading
+ * lines and values creates no Strings or other garbage, however long the stream runs.
+ * @author Jason Gould
+ */
+class NNStreamReader {
+    private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+    private final InputStream input;
+    private final String[] labels;
+    private final byte[][] labelBytes;
+    private byte[] bytes;
+    private ByteBuffer buffer;
+    //the unread bytes are those from position up to limit
+    private int position;
+    private int limit;
+    private int lineStart;
+    private int lineEnd;
+    private int lineNumber;
+    private boolean endOfStream;
+
+    NNStreamReader(InputStream _input, Collection<String> _labels) {
+        input = _input;
+        labels = _labels.toArray(new String[0]);
+        labelBytes = new byte[labels.length][];
+        for(int index = 0; index < labels.length; index++) {
+            labelBytes[index] = labels[index].getBytes(StandardCharsets.US_ASCII);
+        }
+        bytes = new byte[INITIAL_BUFFER_SIZE];
+        buffer = ByteBuffer.wrap(bytes);
+    }
+
+    int getLineNumber() { return lineNumber; }
+
+    /**
+     * Returns true if the current line holds nothing but whitespace.
+     */
+    boolean isLineBlank() { return lineStart == lineEnd; }
+
+    /**
+     * Moves on to the next line of the stream, waiting for it to arrive in full.
+     * @return the label the line holds, {@link NNDataReader#NOT_A_LABEL} if it holds anything else, or null once the
+     *         stream has ended
+     */
+    String nextLine() throws IOException {
+        int searchFrom = position;
+        while(true) {
+            int newline = searchFrom;
+            while(newline < limit && bytes[newline] != '\n') {
+                newline++;
+            }
+            if(newline < limit) {
+                return setLine(newline, newline + 1);
+            }
+            if(endOfStream) {
+                //the last line need not end in a newline
+                return position < limit ? setLine(limit, limit) : null;
+            }
+            int unread = limit - position;
+            fill();
+            //only the bytes that just arrived can hold the newline
+            searchFrom = position + unread;
+        }
+    }
+
+    /**
+     * Parses the comma separated values on the current line into values starting at offset, counting but not storing
+     * any at or past end. Empty fields are skipped.
+     * @return the number of values on the line
+     */
+    int readValues(double[] values, int offset, int end) throws IOException {
+        return NNDataReader.readValues(buffer, lineStart, lineEnd, values, offset, end, lineNumber);
+    }
+
+    private String setLine(int end, int next) {
+        lineNumber++;
+        lineStart = NNDataReader.skipLeadingWhitespace(buffer, position, end);
+        lineEnd = NNDataReader.skipTrailingWhitespace(buffer, lineStart, end);
+        position = next;
+        return NNDataReader.matchLabel(buffer, lineStart, lineEnd, labels, labelBytes);
+    }
+
+    /**
+     * Moves the unread bytes to the front of the buffer, growing it if they already fill it, and reads as many more
+     * as are available, waiting for at least one.
+     */
+    private void fill() throws IOException {
+        System.arraycopy(bytes, position, bytes, 0, limit - position);
+        limit -= position;
+        position = 0;
+        if(limit == bytes.length) {
+            //a line longer than any before it
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            buffer = ByteBuffer.wrap(bytes);
+        }
+        int read = input.read(bytes, limit, bytes.length - limit);
+        if(read < 0) {
+            endOfStream = true;
+        } else {
+            limit += read;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Trains many configurations of the neural network on one data file at once, to tune its hyperparameters. The data
+ * file is loaded a single time and its data sets are shared, read only, by every configuration, each of which is
+ * trained by its own builder on a bounded pool of threads. Every combination of the given hidden layer sizes,
+ * learning rates and momentums is trained from the same seed, so they split the data sets the same way, and the
+ * results are printed as a table ranked by the number of iterations each needed to reach the desired accuracy, then
+ * by the accuracy on the validation sets of those that never did.
+ * <pre>
+ *   java NNSweep &lt;data file&gt; [true|false] [--hidden SIZES]... [--learning-rate LIST] [--momentum LIST]
+ *                [--sweep-threads N] [builder options]
+ * </pre>
+ * --hidden may be given once per hidden layer configuration, such as --hidden 8 --hidden 16,8, while --learning-rate
+ * and --momentum take comma separated lists. Any left out keep the value from the data file or the builder's default.
+ * --sweep-threads sets how many configurations train at once, one per processor by default. Every other option is
+ * passed on to each builder, except for those that read or write files of their own. The times in the table are
+ * measured while the configurations share the processors, so they only compare configurations of the same sweep.
+ * @author Jason Gould
+ */
+public class NNSweep {
+    //options whose files every configuration would fight over, and cross validation, which runs its own builders
+    private static final Set<String> UNSUPPORTED_OPTIONS = Set.of("--load", "--save", "--export", "--checkpoint",
+            "--checkpoint-interval", "--resume", "--metrics", "--metrics-format", "--jmx", "--folds");
+
+    public static void main(String[] args) {
+        assert(args.length > 0);
+
+        List<String> hiddenSizes = new ArrayList<>();
+        List<String> learningRates = new ArrayList<>();
+        List<String> momentums = new ArrayList<>();
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        List<String> builderArgs = new ArrayList<>(Arrays.asList(args[0]));
+        int argIndex = 1;
+        if(args.length > argIndex && !args[argIndex].startsWith("--")) {
+            //true/false to split the data sets has to stay right after the data file
+            builderArgs.add(args[argIndex]);
+            argIndex++;
+        }
+        builderArgs.add("--quiet");
+        boolean seeded = false;
+        for(; argIndex < args.length; argIndex++) {
+            String option = args[argIndex];
+            boolean hasValue = argIndex + 1 < args.length;
+            if(UNSUPPORTED_OPTIONS.contains(option)) {
+                exitWithUsage(option + " cannot be used in a sweep");
+            } else if(option.equals("--hidden") && hasValue) {
+                hiddenSizes.add(args[++argIndex]);
+            } else if(option.equals("--learning-rate") && hasValue) {
+                learningRates.addAll(Arrays.asList(args[++argIndex].split(",")));
+            } else if(option.equals("--momentum") && hasValue) {
+                momentums.addAll(Arrays.asList(args[++argIndex].split(",")));
+            } else if(option.equals("--sweep-threads") && hasValue) {
+                try {
+                    numThreads = Integer.parseInt(args[++argIndex]);
+                } catch(NumberFormatException ex) {
+                    numThreads = 0;
+                }
+                if(numThreads < 1) {
+                    exitWithUsage("Value for --sweep-threads must be a whole number of at least 1: " + args[argIndex]);
+                }
+            } else {
+                seeded |= option.equals("--seed");
+                builderArgs.add(option);
+            }
+        }
+        if(!seeded) {
+            builderArgs.addAll(Arrays.asList("--seed", String.valueOf(new Random().nextLong())));
+        }
+
+        long loadStart = System.nanoTime();
+        NNBuilder loaded = new NNBuilder(args[0]);
+        loaded.load(builderArgs.toArray(new String[0]));
+        System.out.printf("%1$s loaded once in %2$.3f s, %3$d data sets shared by every configuration\n", args[0],
+                (System.nanoTime() - loadStart) / 1e9, loaded.getData().getNumSets());
+
+        //every configuration is set up here, so that a bad option stops the sweep before anything trains
+        List<SweepRun> runs = new ArrayList<>();
+        for(String hidden: orDefault(hiddenSizes)) {
+            for(String learningRate: orDefault(learningRates)) {
+                for(String momentum: orDefault(momentums)) {
+                    List<String> runArgs = new ArrayList<>(builderArgs);
+                    addOption(runArgs, "--hidden", hidden);
+                    addOption(runArgs, "--learning-rate", learningRate);
+                    addOption(runArgs, "--momentum", momentum);
+                    NNBuilder builder = new NNBuilder(loaded);
+                    builder.init(runArgs.toArray(new String[0]));
+                    runs.add(new SweepRun(builder));
+                }
+            }
+        }
+        System.out.printf("Training %1$d configuration(s) on %2$d thread(s)\n\n", runs.size(), numThreads);
+
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for(SweepRun run: runs) {
+                results.add(pool.submit(run::train));
+            }
+            for(Future<?> result: results) {
+                result.get();
+            }
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch(ExecutionException ex) {
+            System.out.println("A configuration failed to train: " + ex.getCause());
+            ex.getCause().printStackTrace();
+            System.exit(1);
+        } finally {
+            pool.shutdown();
+        }
+
+        runs.sort(Comparator.comparing((SweepRun run) -> !run.builder.isDesiredAccuracyReached())
+                            .thenComparingInt(run -> run.builder.getIterations())
+                            .thenComparingDouble(run -> -run.builder.getAccuracy())
+                            .thenComparingDouble(run -> run.seconds));
+        System.out.printf("%1$4s %2$-16s %3$13s %4$9s %5$11s %6$7s %7$10s %8$10s\n", "Rank", "Hidden",
+                "Learning rate", "Momentum", "Iterations", "Target", "Seconds", "Accuracy");
+        for(int rank = 0; rank < runs.size(); rank++) {
+            NNBuilder builder = runs.get(rank).builder;
+            Double momentum = builder.getNetwork().getOptimizer().getMomentum();
+            System.out.printf("%1$4d %2$-16s %3$13.6g %4$9s %5$11d %6$7s %7$10.3f %8$9.2f%%\n", rank + 1,
+                    Arrays.stream(builder.getHiddenSizes()).mapToObj(String::valueOf).collect(Collectors.joining(",")),
+                    builder.getLearningRate(), momentum == null ? "-" : String.format("%.3g", momentum),
+                    builder.getIterations(), builder.isDesiredAccuracyReached() ? "yes" : "no",
+                    runs.get(rank).seconds, builder.getAccuracy() * 100);
+        }
+    }
+
+    /**
+     * Returns the values to sweep over, or a single null, which keeps the default, if none were given.
+     */
+    private static List<String> orDefault(List<String> values) {
+        return values.isEmpty() ? Arrays.asList((String)null) : values;
+    }
+
+    private static void addOption(List<String> args, String option, String value) {
+        if(value != null) {
+            args.add(option);
+            args.add(value.trim());
+        }
+    }
+
+    private static void exitWithUsage(String message) {
+        System.out.println(message);
+        System.out.println("Usage: NNSweep <data file> [true|false] [--hidden SIZES]... [--learning-rate LIST] " +
+                "[--momentum LIST] [--sweep-threads N] [builder options]");
+        System.exit(1);
+    }
+
+    /**
+     * One configuration of the sweep and how long it took to train.
+     */
+    private static final class SweepRun {
+        private final NNBuilder builder;
+        private double seconds;
+
+        SweepRun(NNBuilder _builder) {
+            builder = _builder;
+        }
+
+        void train() {
+            long startTime = System.nanoTime();
+            builder.run();
+            seconds = (System.nanoTime() - startTime) / 1e9;
+        }
+    }
+}
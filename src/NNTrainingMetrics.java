@@ -0,0 +1,204 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects telemetry for each training iteration: nanosecond timers for the forward pass, back propagation, weight
+ * update and evaluation phases, the number of data sets trained per second, the rate at which every thread together
+ * allocated memory, and the generalization loss and accuracy. Iteration durations also go into a histogram for the
+ * whole run. Each iteration can be written to a file as a line of CSV or JSON, and the latest values can be watched
+ * over JMX. Networks and builders only collect metrics when they are given a metrics object, so a run without one pays
+ * nothing beyond a null check per mini-batch.
+ * <p>
+ * The forward, back propagation and update timers are summed over every thread that trains, so with several workers
+ * they can add up to more than the time the iteration took.
+ * @author Jason Gould
+ */
+class NNTrainingMetrics implements NNTrainingMetricsMBean, Closeable {
+    private static final String CSV_HEADER = "iteration,epochNanos,trainNanos,forwardNanos,backPropagateNanos," +
+            "updateNanos,evaluateNanos,samplesPerSecond,allocatedBytesPerSecond,loss,accuracy";
+    //each power of two of the histogram is split into this many buckets, so a percentile is within 12.5%
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    private final LongAdder forwardNanos;
+    private final LongAdder backPropagateNanos;
+    private final LongAdder updateNanos;
+    private final long[] epochHistogram;
+    private final BufferedWriter writer;
+    private final boolean json;
+    private long epochStart;
+    private long trainEnd;
+    private long allocatedAtStart;
+    private volatile int iteration;
+    private volatile double accuracy;
+    private volatile double loss;
+    private volatile double samplesPerSecond;
+    private volatile double allocatedBytesPerSecond;
+    private volatile long lastEpochNanos;
+    private volatile long lastTrainNanos;
+    private volatile long lastForwardNanos;
+    private volatile long lastBackPropagateNanos;
+    private volatile long lastUpdateNanos;
+    private volatile long lastEvaluateNanos;
+    private volatile long epochNanosP50;
+    private volatile long epochNanosP99;
+
+    /**
+     * @param outputFile file to write a line per iteration to, or null to write nothing
+     * @param _json true to write JSON lines, false to write CSV
+     */
+    NNTrainingMetrics(Path outputFile, boolean _json) throws IOException {
+        forwardNanos = new LongAdder();
+        backPropagateNanos = new LongAdder();
+        updateNanos = new LongAdder();
+        epochHistogram = new long[(Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+        json = _json;
+        writer = outputFile == null ? null : Files.newBufferedWriter(outputFile);
+        if(writer != null && !json) {
+            writer.write(CSV_HEADER);
+            writer.newLine();
+        }
+    }
+
+    /**
+     * Records time spent running sets forward and backward through a network. Safe to call from any thread.
+     */
+    void recordTraining(long forward, long backPropagate) {
+        forwardNanos.add(forward);
+        backPropagateNanos.add(backPropagate);
+    }
+
+    /**
+     * Records time spent updating weights. Safe to call from any thread.
+     */
+    void recordUpdate(long update) {
+        updateNanos.add(update);
+    }
+
+    void startEpoch() {
+        allocatedAtStart = totalAllocatedBytes();
+        epochStart = System.nanoTime();
+    }
+
+    /**
+     * Marks the end of training for the current iteration and the start of its evaluation.
+     */
+    void endTraining() {
+        trainEnd = System.nanoTime();
+    }
+
+    /**
+     * Completes the current iteration, publishing its metrics and writing them out.
+     */
+    void endEpoch(int _iteration, int numSetsTrained, double _loss, double _accuracy) throws IOException {
+        long epochEnd = System.nanoTime();
+        long epochNanos = epochEnd - epochStart;
+        long trainNanos = trainEnd - epochStart;
+        epochHistogram[bucketIndex(epochNanos)]++;
+
+        lastEpochNanos = epochNanos;
+        lastTrainNanos = trainNanos;
+        lastForwardNanos = forwardNanos.sumThenReset();
+        lastBackPropagateNanos = backPropagateNanos.sumThenReset();
+        lastUpdateNanos = updateNanos.sumThenReset();
+        lastEvaluateNanos = epochEnd - trainEnd;
+        samplesPerSecond = numSetsTrained / (Math.max(trainNanos, 1) / 1e9);
+        allocatedBytesPerSecond = (totalAllocatedBytes() - allocatedAtStart) / (Math.max(epochNanos, 1) / 1e9);
+        loss = _loss;
+        accuracy = _accuracy;
+        epochNanosP50 = histogramPercentile(0.5);
+        epochNanosP99 = histogramPercentile(0.99);
+        iteration = _iteration;
+
+        if(writer != null) {
+            writer.write(json ? String.format(Locale.ROOT, "{\"iteration\":%1$d,\"epochNanos\":%2$d," +
+                            "\"trainNanos\":%3$d,\"forwardNanos\":%4$d,\"backPropagateNanos\":%5$d," +
+                            "\"updateNanos\":%6$d,\"evaluateNanos\":%7$d,\"samplesPerSecond\":%8$.1f," +
+                            "\"allocatedBytesPerSecond\":%9$.1f,\"loss\":%10$.8g,\"accuracy\":%11$.6f}",
+                            _iteration, epochNanos, trainNanos, lastForwardNanos, lastBackPropagateNanos,
+                            lastUpdateNanos, lastEvaluateNanos, samplesPerSecond, allocatedBytesPerSecond, loss,
+                            accuracy) :
+                    String.format(Locale.ROOT, "%1$d,%2$d,%3$d,%4$d,%5$d,%6$d,%7$d,%8$.1f,%9$.1f,%10$.8g,%11$.6f",
+                            _iteration, epochNanos, trainNanos, lastForwardNanos, lastBackPropagateNanos,
+                            lastUpdateNanos, lastEvaluateNanos, samplesPerSecond, allocatedBytesPerSecond, loss,
+                            accuracy));
+            writer.newLine();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(writer != null) {
+            writer.close();
+        }
+    }
+
+    @Override public int getIteration() { return iteration; }
+    @Override public double getAccuracy() { return accuracy; }
+    @Override public double getLoss() { return loss; }
+    @Override public double getSamplesPerSecond() { return samplesPerSecond; }
+    @Override public double getAllocatedBytesPerSecond() { return allocatedBytesPerSecond; }
+    @Override public long getEpochNanos() { return lastEpochNanos; }
+    @Override public long getTrainNanos() { return lastTrainNanos; }
+    @Override public long getForwardNanos() { return lastForwardNanos; }
+    @Override public long getBackPropagateNanos() { return lastBackPropagateNanos; }
+    @Override public long getUpdateNanos() { return lastUpdateNanos; }
+    @Override public long getEvaluateNanos() { return lastEvaluateNanos; }
+    @Override public long getEpochNanosP50() { return epochNanosP50; }
+    @Override public long getEpochNanosP99() { return epochNanosP99; }
+
+    private static long totalAllocatedBytes() {
+        long total = 0;
+        for(long allocated: THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            //threads that have ended report -1
+            total += Math.max(allocated, 0);
+        }
+        return total;
+    }
+
+    /**
+     * Values below SUB_BUCKETS get a bucket each; every larger power of two is split into SUB_BUCKETS buckets.
+     */
+    private static int bucketIndex(long value) {
+        if(value < SUB_BUCKETS) {
+            return (int)Math.max(value, 0);
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the smallest value that falls in the given bucket.
+     */
+    private static long bucketValue(int index) {
+        if(index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long)(SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    private long histogramPercentile(double fraction) {
+        long count = 0;
+        for(long bucketCount: epochHistogram) {
+            count += bucketCount;
+        }
+        long target = (long)Math.ceil(fraction * count);
+        long seen = 0;
+        for(int index = 0; index < epochHistogram.length; index++) {
+            seen += epochHistogram[index];
+            if(seen >= target && epochHistogram[index] > 0) {
+                return bucketValue(index);
+            }
+        }
+        return 0;
+    }
+}
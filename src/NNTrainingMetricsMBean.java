@@ -0,0 +1,23 @@
+/**
+ * Management interface through which a training run's {@link NNTrainingMetrics} can be watched over JMX, for example
+ * with JConsole, while the run is in progress. Every value describes the most recently completed iteration unless it
+ * says otherwise.
+ * @author Jason Gould
+ */
+public interface NNTrainingMetricsMBean {
+    int getIteration();
+    double getAccuracy();
+    double getLoss();
+    double getSamplesPerSecond();
+    double getAllocatedBytesPerSecond();
+    long getEpochNanos();
+    long getTrainNanos();
+    long getForwardNanos();
+    long getBackPropagateNanos();
+    long getUpdateNanos();
+    long getEvaluateNanos();
+    /** Median duration of every iteration so far. */
+    long getEpochNanosP50();
+    /** 99th percentile duration of every iteration so far. */
+    long getEpochNanosP99();
+}
@@ -0,0 +1,95 @@
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes the weights of a network that carries on training to any number of threads running inference, without a
+ * reader ever seeing a mix of old and new weights and without readers and the publisher ever waiting on each other.
+ * Each publish copies the weights into a snapshot that no reader is using and swaps it in with a single volatile
+ * write. A reader marks the snapshot it is about to use and then checks that it is still the current one, so a
+ * snapshot the publisher has already replaced, and may be about to refill, is never read. Snapshots are reused once
+ * their readers are done with them, so there are never more than a couple more of them than threads reading at once,
+ * and after the first few publishes copying the weights is all a publish costs.
+ * @author Jason Gould
+ */
+final class NNWeightPublisher {
+    private final NeuralNetwork network;
+    //only ever touched by the publishing thread
+    private final ArrayList<Snapshot> snapshots;
+    private volatile Snapshot current;
+    private long version;
+
+    /**
+     * Publishes the network's current weights straight away.
+     */
+    NNWeightPublisher(NeuralNetwork _network) {
+        network = _network;
+        snapshots = new ArrayList<>();
+        publish();
+    }
+
+    /**
+     * Publishes the network's current weights. Must only be called by the thread training the network, between
+     * updates.
+     */
+    void publish() {
+        Snapshot next = null;
+        for(Snapshot snapshot: snapshots) {
+            if(snapshot != current && snapshot.readers.get() == 0) {
+                next = snapshot;
+                break;
+            }
+        }
+        if(next == null) {
+            //every other snapshot is still being read, which only happens until there is one per reading thread
+            next = new Snapshot(new NNInferenceEngine(network));
+            snapshots.add(next);
+        } else {
+            next.engine.setWeights(network.getWeights());
+        }
+        next.version = ++version;
+        current = next;
+    }
+
+    /**
+     * Runs a single row of inputs through the most recently published weights. Any number of threads may call this
+     * at once.
+     * @return the version of the weights that produced the outputs, counting publishes from 1
+     */
+    long predict(double[] inputs, double[] outputs) {
+        Snapshot snapshot = acquire();
+        try {
+            snapshot.engine.predict(inputs, 0, 1, outputs, 0);
+            return snapshot.version;
+        } finally {
+            snapshot.readers.decrementAndGet();
+        }
+    }
+
+    long getVersion() { return current.version; }
+
+    private Snapshot acquire() {
+        while(true) {
+            Snapshot snapshot = current;
+            snapshot.readers.incrementAndGet();
+            if(snapshot == current) {
+                return snapshot;
+            }
+            //replaced before it was marked, so the publisher may already be refilling it
+            snapshot.readers.decrementAndGet();
+        }
+    }
+
+    /**
+     * One published copy of the weights and the number of threads reading it.
+     */
+    private static final class Snapshot {
+        private final NNInferenceEngine engine;
+        private final AtomicInteger readers;
+        private long version;
+
+        Snapshot(NNInferenceEngine _engine) {
+            engine = _engine;
+            readers = new AtomicInteger();
+        }
+    }
+}
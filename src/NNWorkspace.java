@@ -0,0 +1,119 @@
+/**
+ * Scratch buffers used while running data sets through a neural network. Holds the inputs and desired outputs of the
+ * sets being run, the values achieved at every hidden layer and the output layer as well as the error deltas
+ * calculated during back propagation, so that a network can be run over and over without allocating. Each buffer is a
+ * flat [set][node] matrix with room for a full mini-batch of sets; a single data set uses the first row. Layers are
+ * numbered from the input layer, 0, to the output layer. Inputs loaded from sparse data sets are held as compressed
+ * sparse rows instead of in the input layer's buffer. A network training in single precision also keeps float copies
+ * of the layer values and error deltas here, allocated the first time they are used. Workspaces used by parallel
+ * workers also carry gradient buffers shaped like the network's weight matrices. A workspace is not thread safe; every
+ * thread using a network needs its own.
+ * @author Jason Gould
+ */
+class NNWorkspace {
+    private final int batchSize;
+    private final int[] layerSizes;
+    private final int numInputs;
+    //every layer but the output layer ends each row in a bias node
+    private final double[][] neuronValue;
+    //the layer values before activation, null for the input layer
+    private final double[][] neuronRawValue;
+    //null for the input layer
+    private final double[][] errorDeltas;
+    private final double[] desiredOutputValue;
+    //one per weight matrix, or null when the workspace carries no gradients
+    private final double[][] gradients;
+    //the inputs as compressed sparse rows, each ending in the bias node, allocated the first time sparse inputs are
+    //loaded: row s is at sparseInputIndices and sparseInputValues from sparseInputStarts[s] up to
+    //sparseInputStarts[s+1]
+    private int[] sparseInputStarts;
+    private int[] sparseInputIndices;
+    private double[] sparseInputValues;
+    //whether the inputs of the sets last loaded are in the sparse rows rather than the input layer
+    private boolean sparseInputs;
+    //single precision versions of the layer buffers, laid out the same way, or null until they are needed
+    private float[][] floatNeuronValue;
+    private float[][] floatNeuronRawValue;
+    private float[][] floatErrorDeltas;
+
+    NNWorkspace(int[] _layerSizes, int _batchSize, boolean _withGradients) {
+        int outputLayer = _layerSizes.length - 1;
+        batchSize = _batchSize;
+        layerSizes = _layerSizes;
+        numInputs = _layerSizes[0];
+        neuronValue = new double[_layerSizes.length][];
+        neuronRawValue = new double[_layerSizes.length][];
+        errorDeltas = new double[_layerSizes.length][];
+        for(int layer = 0; layer <= outputLayer; layer++) {
+            int rowLength = layer < outputLayer ? _layerSizes[layer]+1 : _layerSizes[layer];
+            neuronValue[layer] = new double[rowLength * batchSize];
+            if(layer > 0) {
+                neuronRawValue[layer] = new double[_layerSizes[layer] * batchSize];
+                errorDeltas[layer] = new double[_layerSizes[layer] * batchSize];
+            }
+            //the bias nodes are never written by loading a set or by a feed forward, so they only need to be set once
+            for(int set = 0; layer < outputLayer && set < batchSize; set++) {
+                neuronValue[layer][set * rowLength + _layerSizes[layer]] = 1.0;
+            }
+        }
+        desiredOutputValue = new double[_layerSizes[outputLayer] * batchSize];
+        gradients = _withGradients ? new double[outputLayer][] : null;
+        for(int layer = 0; _withGradients && layer < outputLayer; layer++) {
+            gradients[layer] = new double[(_layerSizes[layer]+1) * _layerSizes[layer+1]];
+        }
+    }
+
+    int getBatchSize() { return batchSize; }
+    double[] getInputNeuronValue() { return neuronValue[0]; }
+    double[] getOutputNeuronValue() { return neuronValue[neuronValue.length - 1]; }
+    double[] getNeuronValue(int layer) { return neuronValue[layer]; }
+    double[] getNeuronRawValue(int layer) { return neuronRawValue[layer]; }
+    double[] getErrorDeltas(int layer) { return errorDeltas[layer]; }
+    double[] getOutputErrorDeltas() { return errorDeltas[errorDeltas.length - 1]; }
+    double[] getDesiredOutputValue() { return desiredOutputValue; }
+    double[][] getGradients() { return gradients; }
+    boolean hasSparseInputs() { return sparseInputs; }
+    int[] getSparseInputStarts() { return sparseInputStarts; }
+    int[] getSparseInputIndices() { return sparseInputIndices; }
+    double[] getSparseInputValues() { return sparseInputValues; }
+    float[] getFloatNeuronValue(int layer) { return floatNeuronValue[layer]; }
+    float[] getFloatNeuronRawValue(int layer) { return floatNeuronRawValue[layer]; }
+    float[] getFloatErrorDeltas(int layer) { return floatErrorDeltas[layer]; }
+
+    /**
+     * Marks whether the inputs of the sets being loaded go into the sparse rows or the input layer, allocating the
+     * sparse rows, with room for every input of a full mini-batch, the first time they are needed.
+     */
+    void setSparseInputs(boolean _sparseInputs) {
+        sparseInputs = _sparseInputs;
+        if(sparseInputs && sparseInputStarts == null) {
+            sparseInputStarts = new int[batchSize + 1];
+            sparseInputIndices = new int[batchSize * (numInputs+1)];
+            sparseInputValues = new double[batchSize * (numInputs+1)];
+        }
+    }
+
+    /**
+     * Allocates the single precision layer buffers, with their bias nodes set, unless that has already been done.
+     */
+    void ensureSinglePrecision() {
+        if(floatNeuronValue != null) {
+            return;
+        }
+        int outputLayer = layerSizes.length - 1;
+        floatNeuronValue = new float[layerSizes.length][];
+        floatNeuronRawValue = new float[layerSizes.length][];
+        floatErrorDeltas = new float[layerSizes.length][];
+        for(int layer = 0; layer <= outputLayer; layer++) {
+            int rowLength = layer < outputLayer ? layerSizes[layer]+1 : layerSizes[layer];
+            floatNeuronValue[layer] = new float[rowLength * batchSize];
+            if(layer > 0) {
+                floatNeuronRawValue[layer] = new float[layerSizes[layer] * batchSize];
+                floatErrorDeltas[layer] = new float[layerSizes[layer] * batchSize];
+            }
+            for(int set = 0; layer < outputLayer && set < batchSize; set++) {
+                floatNeuronValue[layer][set * rowLength + layerSizes[layer]] = 1.0f;
+            }
+        }
+    }
+}
@@ -1,134 +1,560 @@
 /**
  * Basic Neural Network class which can feed forward input as well as back propagate errors. Uses a sigmoid function
- * for the activation function and gradient descent for back propagation. Can be be set to employ either batch learning
- * or on-line/stochastic learning for back propagation.
+ * for the activation function and, by default, gradient descent with momentum for back propagation; any
+ * {@link NNOptimizer} can take its place, and the learning rate can follow a {@link NNLearningRateSchedule} over the
+ * epochs. The network has any number of hidden layers, each of its own width, between the input and output layers;
+ * layers are numbered from the input layer, 0, to the output layer, and weight matrix l connects layer l, plus its bias
+ * node, to layer l+1. Trains on mini-batches of any size; a batch of a single data set is on-line/stochastic learning
+ * and a batch of every data set is batch learning. Batches are run through the network as matrix-matrix products over a
+ * whole block of data sets at once. Inputs from a data store that indexes them as sparse rows only ever have their
+ * nonzero values multiplied into the first layer and its weight updates. The sigmoid can be switched to a faster
+ * approximation, see {@link NNActivation}.
+ * <p>
+ * Training can run in mixed precision: the feed forward and the back propagation of error deltas then multiply float
+ * copies of the weights and keep every layer's values and deltas as floats, while the weights themselves, the
+ * gradients summed over a mini-batch and the optimizer's state stay in double precision. The float weights are
+ * refreshed from the doubles after every update, so rounding never builds up in them.
  * @author Jason Gould
  */
 class NeuralNetwork {
-    private static final double MOMENTUM = .5;
+    //the width of every layer from the input layer to the output layer
+    private final int[] layerSizes;
     private final int numInputs;
     private final int numOutputs;
-    private final int numHidden;
-    private final double learningRate;
-    private final boolean batch;
-    private double[][] weightInputToHidden;
-    private double[][] weightHiddenToOutput;
-    private double[][] inputToHiddenErrorOffset;
-    private double[][] hiddenToOutputErrorOffset;
-
-    NeuralNetwork(int _numInputs, int _numOutputs, int _numHidden, double _learningRate, boolean _batch,
-                         double[][] _weightInputToHidden, double[][] _weightHiddenToOutput) {
-        numInputs = _numInputs;
-        numOutputs = _numOutputs;
-        numHidden = _numHidden;
+    private final int numWeightLayers;
+    private double learningRate;
+    //the learning rate for the current epoch, after the schedule has been applied
+    private double currentLearningRate;
+    private NNOptimizer optimizer;
+    private NNLearningRateSchedule schedule;
+    //one flat [feed][result] matrix per pair of adjacent layers, see NNKernels for the layout
+    private final double[][] weights;
+    private final double[][] errorOffsets;
+    private final NNWorkspace workspace;
+    //null unless training metrics are being collected
+    private NNTrainingMetrics metrics;
+    private boolean fastActivation;
+    //float copies of the weights when training in single precision, otherwise null
+    private float[][] floatWeights;
+
+    /**
+     * @param _layerSizes the width of every layer from the input layer to the output layer, at least one of them
+     *                    hidden
+     * @param _weights one matrix per pair of adjacent layers, shaped as {@link #newWeights(int[])} shapes them
+     */
+    NeuralNetwork(int[] _layerSizes, double _learningRate, int _batchSize, double[][] _weights) {
+        assert(_layerSizes.length >= 3 && _weights.length == _layerSizes.length - 1);
+        layerSizes = _layerSizes.clone();
+        numInputs = layerSizes[0];
+        numOutputs = layerSizes[layerSizes.length - 1];
+        numWeightLayers = layerSizes.length - 1;
         learningRate = _learningRate;
-        batch = _batch;
-        weightInputToHidden = _weightInputToHidden;
-        weightHiddenToOutput = _weightHiddenToOutput;
-        inputToHiddenErrorOffset = new double[numInputs+1][numHidden];
-        hiddenToOutputErrorOffset = new double[numHidden+1][numOutputs];
+        currentLearningRate = learningRate;
+        optimizer = new NNMomentumOptimizer(NNMomentumOptimizer.DEFAULT_MOMENTUM);
+        schedule = NNLearningRateSchedule.CONSTANT;
+        weights = _weights;
+        errorOffsets = newWeights(layerSizes);
+        workspace = newWorkspace(_batchSize);
     }
 
-    void process(NNDataSet dataSet) {
-        dataSet.reset();
-        feedForward(dataSet.getInputNeuronValue(), dataSet.getHiddenNeuronRawValue(),
-                    dataSet.getHiddenNeuronValue(), numHidden, weightInputToHidden);
-        feedForward(dataSet.getHiddenNeuronValue(), dataSet.getOutputNeuronRawValue(),
-                    dataSet.getOutputNeuronValue(), numOutputs, weightHiddenToOutput);
+    /**
+     * Returns zeroed weight matrices for a network with the given layer sizes, one per pair of adjacent layers.
+     */
+    static double[][] newWeights(int[] layerSizes) {
+        double[][] matrices = new double[layerSizes.length - 1][];
+        for(int layer = 0; layer < matrices.length; layer++) {
+            //adjust the number of weights to account for the addition of the bias node
+            matrices[layer] = new double[(layerSizes[layer]+1) * layerSizes[layer+1]];
+        }
+        return matrices;
     }
 
-    private void feedForward(Double[] feedValues, Double[] rawValues, Double[] resultValues,
-                             int numResults, double[][] weightFeedToResult) {
-        double sum;
+    /**
+     * Returns the total number of weights, bias weights included, of a network with the given layer sizes.
+     */
+    static long countWeights(int[] layerSizes) {
+        long numWeights = 0;
+        for(int layer = 0; layer + 1 < layerSizes.length; layer++) {
+            numWeights += (long)(layerSizes[layer]+1) * layerSizes[layer+1];
+        }
+        return numWeights;
+    }
 
-        for(int resultIndex = 0; resultIndex < numResults; resultIndex++) {
-            sum = 0;
-            for(int feedIndex = 0; feedIndex < feedValues.length; feedIndex++) {
-                sum += feedValues[feedIndex] * weightFeedToResult[feedIndex][resultIndex];
-            }
-            rawValues[resultIndex] = sum;
-            resultValues[resultIndex] = activationFunction(sum);
+    /**
+     * Returns the sizes of every layer of a network with the given inputs, hidden layers and outputs.
+     */
+    static int[] layerSizes(int numInputs, int[] hiddenSizes, int numOutputs) {
+        int[] sizes = new int[hiddenSizes.length + 2];
+        sizes[0] = numInputs;
+        System.arraycopy(hiddenSizes, 0, sizes, 1, hiddenSizes.length);
+        sizes[sizes.length - 1] = numOutputs;
+        return sizes;
+    }
+
+    /**
+     * Creates a workspace sized for this network that can hold up to batchSize data sets at once.
+     */
+    NNWorkspace newWorkspace(int batchSize) {
+        return new NNWorkspace(layerSizes, batchSize, false);
+    }
+
+    /**
+     * Creates a workspace that also carries its own gradient buffers, for use with
+     * {@link #calcGradients(NNDataStore, int[], int, int, int, NNWorkspace)}.
+     */
+    NNWorkspace newWorkerWorkspace(int batchSize) {
+        return new NNWorkspace(layerSizes, batchSize, true);
+    }
+
+    /**
+     * Feeds a data set forward through the network using the network's own workspace.
+     */
+    void process(NNDataStore data, int set) {
+        process(data, set, workspace);
+    }
+
+    /**
+     * Feeds a data set forward through the network, leaving the values of every layer in the first row of the
+     * workspace. Only the workspace is written, so any number of threads may process sets at once with their own
+     * workspaces.
+     */
+    void process(NNDataStore data, int set, NNWorkspace workspace) {
+        workspace.setSparseInputs(data.hasSparseInputs());
+        loadSet(data, set, 0, 0, workspace);
+        feedForward(1, workspace);
+    }
+
+    double[] getOutputNeuronValue() { return workspace.getOutputNeuronValue(); }
+    void setMetrics(NNTrainingMetrics _metrics) { metrics = _metrics; }
+    boolean isFastActivation() { return fastActivation; }
+    void setFastActivation(boolean _fastActivation) { fastActivation = _fastActivation; }
+    int getNumInputs() { return numInputs; }
+    int getNumOutputs() { return numOutputs; }
+    int[] getLayerSizes() { return layerSizes.clone(); }
+    double getLearningRate() { return learningRate; }
+    double getCurrentLearningRate() { return currentLearningRate; }
+    NNOptimizer getOptimizer() { return optimizer; }
+    void setOptimizer(NNOptimizer _optimizer) { optimizer = _optimizer; }
+    NNLearningRateSchedule getLearningRateSchedule() { return schedule; }
+    double[][] getWeights() { return weights; }
+    double[][] getErrorOffsets() { return errorOffsets; }
+    boolean isSinglePrecision() { return floatWeights != null; }
+
+    /**
+     * Switches the feed forward and back propagation between double and mixed single precision. Asynchronous
+     * training, which writes the double weights from several threads at once, only runs in double precision.
+     */
+    void setSinglePrecision(boolean singlePrecision) {
+        if(!singlePrecision) {
+            floatWeights = null;
+            return;
+        }
+        floatWeights = new float[numWeightLayers][];
+        for(int layer = 0; layer < numWeightLayers; layer++) {
+            floatWeights[layer] = new float[weights[layer].length];
+        }
+        weightsChanged();
+    }
+
+    /**
+     * Must be called whenever the weights are changed other than by {@link #updateWeights()}, so that the float copies
+     * used in single precision are brought up to date.
+     */
+    void weightsChanged() {
+        if(floatWeights == null) {
+            return;
+        }
+        for(int layer = 0; layer < numWeightLayers; layer++) {
+            NNKernels.narrow(weights[layer], floatWeights[layer]);
         }
     }
 
-    private double activationFunction(double rawValue) {
-        return (1.0 / (1.0 + Math.exp(-rawValue)));
+    /**
+     * Replaces the base learning rate the schedule works from, starting again from its first epoch.
+     */
+    void setLearningRate(double _learningRate) {
+        learningRate = _learningRate;
+        currentLearningRate = schedule.getRate(learningRate, 0);
     }
 
-    private double activationDerivative(double rawValue) {
-        double denomVal = (1.0 + Math.exp(-rawValue));
-        return Math.exp(-rawValue)/(denomVal * denomVal);
+    void setLearningRateSchedule(NNLearningRateSchedule _schedule) {
+        schedule = _schedule;
+        currentLearningRate = schedule.getRate(learningRate, 0);
     }
 
-    void backPropagate(NNDataSet dataSet) {
-        double[] outputErrorDeltas = calcOutputErrorDeltas(dataSet.getOutputNeuronValue(),
-                                                           dataSet.getOutputNeuronRawValue(),
-                                                           dataSet.getDesiredOutputValue());
-        double[] hiddenErrorDeltas = calcHiddenErrorDeltas(dataSet.getHiddenNeuronRawValue(),
-                                                           outputErrorDeltas);
-        calculateErrorOffsets(inputToHiddenErrorOffset, hiddenErrorDeltas, dataSet.getInputNeuronValue());
-        calculateErrorOffsets(hiddenToOutputErrorOffset, outputErrorDeltas, dataSet.getHiddenNeuronValue());
+    /**
+     * Sets the learning rate for the given epoch, counted from 0, according to the schedule.
+     */
+    void setEpoch(int epoch) {
+        currentLearningRate = schedule.getRate(learningRate, epoch);
     }
 
-    private double[] calcOutputErrorDeltas(Double[] outputNeuronValue, Double[] outputNeuronRawValue,
-                                           Double[] desiredOutputValue) {
-        double[] errorDeltas = new double[outputNeuronValue.length];
+    /**
+     * Returns the widths of the hidden layers, from the input side to the output side.
+     */
+    int[] getHiddenSizes() {
+        int[] hiddenSizes = new int[layerSizes.length - 2];
+        System.arraycopy(layerSizes, 1, hiddenSizes, 0, hiddenSizes.length);
+        return hiddenSizes;
+    }
 
-        for(int index=0; index < errorDeltas.length; index++) {
-            errorDeltas[index] =  activationDerivative(outputNeuronRawValue[index]) *
-                    (desiredOutputValue[index] - outputNeuronValue[index]);
+    /**
+     * Returns a copy of every weight matrix.
+     */
+    double[][] copyWeights() {
+        double[][] copy = new double[numWeightLayers][];
+        for(int layer = 0; layer < numWeightLayers; layer++) {
+            copy[layer] = weights[layer].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * Feeds numRows rows of inputs, each numInputs values long and starting at inputOffset, through the network and
+     * writes the numOutputs output values of each row to outputs starting at outputOffset. Rows are run in blocks of
+     * the workspace's batch size. Only the workspace is written, so any number of threads may run inference at once
+     * with their own workspaces.
+     */
+    void predict(double[] inputs, int inputOffset, int numRows, double[] outputs, int outputOffset,
+                 NNWorkspace workspace) {
+        double[] inputValues = workspace.getInputNeuronValue();
+        workspace.setSparseInputs(false);
+        for(int blockStart = 0; blockStart < numRows; blockStart += workspace.getBatchSize()) {
+            int blockSize = Math.min(workspace.getBatchSize(), numRows - blockStart);
+            for(int row = 0; row < blockSize; row++) {
+                System.arraycopy(inputs, inputOffset + (blockStart + row) * numInputs, inputValues,
+                                 row * (numInputs+1), numInputs);
+            }
+            feedForward(blockSize, workspace);
+            System.arraycopy(workspace.getOutputNeuronValue(), 0, outputs, outputOffset + blockStart * numOutputs,
+                             blockSize * numOutputs);
+        }
+    }
+
+    /**
+     * Feeds the first numSets rows of the workspace's input layer, each numInputs+1 long and ending in the bias node,
+     * through every layer.
+     */
+    private void feedForward(int numSets, NNWorkspace workspace) {
+        if(floatWeights != null) {
+            feedForwardSingle(numSets, workspace);
+            return;
+        }
+        for(int layer = 0; layer < numWeightLayers; layer++) {
+            int numResults = layerSizes[layer+1];
+            double[] rawValues = workspace.getNeuronRawValue(layer+1);
+            double[] values = workspace.getNeuronValue(layer+1);
+            if(layer == 0 && workspace.hasSparseInputs()) {
+                NNKernels.sparseMultiply(workspace.getSparseInputStarts(), workspace.getSparseInputIndices(),
+                                         workspace.getSparseInputValues(), numSets, weights[layer], rawValues,
+                                         numResults);
+            } else {
+                NNKernels.multiply(workspace.getNeuronValue(layer), numSets, layerSizes[layer]+1, weights[layer],
+                                   rawValues, numResults);
+            }
+            if(layer+1 < numWeightLayers) {
+                //hidden rows skip over their bias node
+                for(int set = 0; set < numSets; set++) {
+                    NNActivation.activate(rawValues, set * numResults, values, set * (numResults+1), numResults,
+                                          fastActivation);
+                }
+            } else {
+                NNActivation.activate(rawValues, 0, values, 0, numSets * numResults, fastActivation);
+            }
+        }
+    }
+
+    /**
+     * Single precision version of {@link #feedForward(int, NNWorkspace)}. Dense inputs are rounded to floats on the way
+     * in and the output layer's values are copied back out to the double buffer the error and accuracy are taken from.
+     */
+    private void feedForwardSingle(int numSets, NNWorkspace workspace) {
+        workspace.ensureSinglePrecision();
+        if(!workspace.hasSparseInputs()) {
+            double[] inputs = workspace.getInputNeuronValue();
+            float[] floatInputs = workspace.getFloatNeuronValue(0);
+            for(int set = 0; set < numSets; set++) {
+                int offset = set * (numInputs+1);
+                for(int index = offset; index < offset + numInputs; index++) {
+                    floatInputs[index] = (float)inputs[index];
+                }
+            }
         }
+        for(int layer = 0; layer < numWeightLayers; layer++) {
+            int numResults = layerSizes[layer+1];
+            float[] rawValues = workspace.getFloatNeuronRawValue(layer+1);
+            float[] values = workspace.getFloatNeuronValue(layer+1);
+            if(layer == 0 && workspace.hasSparseInputs()) {
+                NNKernels.sparseMultiply(workspace.getSparseInputStarts(), workspace.getSparseInputIndices(),
+                                         workspace.getSparseInputValues(), numSets, floatWeights[layer], rawValues,
+                                         numResults);
+            } else {
+                NNKernels.multiply(workspace.getFloatNeuronValue(layer), numSets, layerSizes[layer]+1,
+                                   floatWeights[layer], rawValues, numResults);
+            }
+            if(layer+1 < numWeightLayers) {
+                for(int set = 0; set < numSets; set++) {
+                    NNActivation.activate(rawValues, set * numResults, values, set * (numResults+1), numResults,
+                                          fastActivation);
+                }
+            } else {
+                NNActivation.activate(rawValues, 0, values, 0, numSets * numResults, fastActivation);
+            }
+        }
+        float[] floatOutputs = workspace.getFloatNeuronValue(numWeightLayers);
+        double[] outputs = workspace.getOutputNeuronValue();
+        for(int index = 0; index < numSets * numOutputs; index++) {
+            outputs[index] = floatOutputs[index];
+        }
+    }
+
+    void backPropagate() {
+        backPropagate(workspace);
+    }
+
+    /**
+     * Back propagates the error of the data set most recently processed with the given workspace as a mini-batch of
+     * one, folding it into the error offsets as the optimizer asks.
+     */
+    void backPropagate(NNWorkspace workspace) {
+        calcOutputErrorDeltas(1, workspace);
+        backPropagate(1, workspace, errorOffsets, optimizer.getAccumulationScale(currentLearningRate),
+                      optimizer.getAccumulationDecay());
+    }
 
-        return errorDeltas;
+    /**
+     * Runs numSets data sets, taken from the given set indices starting at firstSet, forward and backward through the
+     * network as a single mini-batch using the network's own workspace. The error offsets are ready to be applied with
+     * {@link #updateWeights()}.
+     */
+    void trainBatch(NNDataStore data, int[] sets, int firstSet, int numSets) {
+        trainBatch(data, sets, firstSet, numSets, workspace);
     }
 
-    private double[] calcHiddenErrorDeltas(Double[] hiddenNeuronRawValue,
-                                           double[] outputErrorDeltas) {
-        double[] errorDeltas = new double[hiddenNeuronRawValue.length];
-        double weightedSum;
+    void trainBatch(NNDataStore data, int[] sets, int firstSet, int numSets, NNWorkspace workspace) {
+        assert(numSets <= workspace.getBatchSize());
 
-        for(int hiddenIndex=0; hiddenIndex < hiddenNeuronRawValue.length; hiddenIndex++) {
-            weightedSum = 0;
-            for(int outputIndex = 0; outputIndex < numOutputs; outputIndex++) {
-                weightedSum += weightHiddenToOutput[hiddenIndex][outputIndex] * outputErrorDeltas[outputIndex];
+        //the offsets are averaged over the batch, so the learning rate means the same thing for any batch size, and
+        //folded into whatever the optimizer carries from the last update
+        runBatch(data, sets, firstSet, numSets, workspace, errorOffsets,
+                 optimizer.getAccumulationScale(currentLearningRate) / numSets, optimizer.getAccumulationDecay());
+    }
+
+    /**
+     * Runs a single data set, given as its numInputs inputs starting at inputOffset and its numOutputs desired outputs
+     * starting at outputOffset, forward and backward through the network as a mini-batch of one using the network's
+     * own workspace. This is for data sets that arrive one at a time rather than from a data store. The error offsets
+     * are ready to be applied with {@link #updateWeights()}.
+     */
+    void train(double[] inputs, int inputOffset, double[] desiredOutputs, int outputOffset) {
+        workspace.setSparseInputs(false);
+        System.arraycopy(inputs, inputOffset, workspace.getInputNeuronValue(), 0, numInputs);
+        System.arraycopy(desiredOutputs, outputOffset, workspace.getDesiredOutputValue(), 0, numOutputs);
+        feedForward(1, workspace);
+        backPropagate(workspace);
+    }
+
+    /**
+     * Runs numSets data sets, taken from the given set indices starting at firstSet, forward and backward through the
+     * network, storing their share of the offsets for a mini-batch of batchSize sets in the workspace's gradient
+     * buffers. Neither the weights nor the network's own offsets are touched, so any number of threads may call this
+     * at once with their own workspaces. Combine the results with {@link #applyGradients(NNWorkspace[], int)}.
+     */
+    void calcGradients(NNDataStore data, int[] sets, int firstSet, int numSets, int batchSize,
+                       NNWorkspace workspace) {
+        double scale = optimizer.getAccumulationScale(currentLearningRate) / batchSize;
+        double decay = 0;
+        for(int blockStart = 0; blockStart < numSets; blockStart += workspace.getBatchSize()) {
+            int blockSize = Math.min(workspace.getBatchSize(), numSets - blockStart);
+            runBatch(data, sets, firstSet + blockStart, blockSize, workspace, workspace.getGradients(), scale, decay);
+            //later blocks add on to the first
+            decay = 1.0;
+        }
+    }
+
+    /**
+     * Sums the gradients of the first numWorkspaces workspaces, in order, on top of whatever the optimizer carries
+     * from the last update. The error offsets are then ready to be applied with {@link #updateWeights()}.
+     */
+    void applyGradients(NNWorkspace[] workspaces, int numWorkspaces) {
+        long startTime = metrics == null ? 0 : System.nanoTime();
+        for(int layer = 0; layer < numWeightLayers; layer++) {
+            NNKernels.scale(errorOffsets[layer], optimizer.getAccumulationDecay());
+            for(int index = 0; index < numWorkspaces; index++) {
+                NNKernels.add(errorOffsets[layer], workspaces[index].getGradients()[layer]);
             }
+        }
+        if(metrics != null) {
+            metrics.recordUpdate(System.nanoTime() - startTime);
+        }
+    }
 
-            errorDeltas[hiddenIndex] = activationDerivative(hiddenNeuronRawValue[hiddenIndex]) * weightedSum;
+    /**
+     * Runs a single data set forward and backward through the network and immediately applies the result to the
+     * shared weights without any locking, Hogwild style. The momentum offsets live in the workspace's gradient buffers,
+     * so each thread carries its own. Any number of threads may call this at once with their own workspaces; updates
+     * racing on the same weight may be lost, which slows convergence slightly. The updates are written atomically, but
+     * the weights are read with plain reads, so a weight is only guaranteed never to be seen torn on JVMs that read
+     * doubles atomically, as 64-bit HotSpot does; see {@link NNKernels#addShared(double[], double[])}. Only the
+     * momentum optimizer works this way, since the others keep a single shared state per weight.
+     */
+    void trainAsync(NNDataStore data, int set, NNWorkspace workspace) {
+        assert(floatWeights == null);
+        long startTime = metrics == null ? 0 : System.nanoTime();
+        process(data, set, workspace);
+        long forwardEnd = metrics == null ? 0 : System.nanoTime();
+        calcOutputErrorDeltas(1, workspace);
+        backPropagate(1, workspace, workspace.getGradients(), optimizer.getAccumulationScale(currentLearningRate),
+                      optimizer.getAccumulationDecay());
+        long backPropagateEnd = metrics == null ? 0 : System.nanoTime();
+        for(int layer = 0; layer < numWeightLayers; layer++) {
+            NNKernels.addShared(weights[layer], workspace.getGradients()[layer]);
         }
+        if(metrics != null) {
+            long updateEnd = System.nanoTime();
+            metrics.recordTraining(forwardEnd - startTime, backPropagateEnd - forwardEnd);
+            metrics.recordUpdate(updateEnd - backPropagateEnd);
+        }
+    }
+
+    private void runBatch(NNDataStore data, int[] sets, int firstSet, int numSets, NNWorkspace workspace,
+                          double[][] targets, double scale, double decay) {
+        long startTime = metrics == null ? 0 : System.nanoTime();
+        workspace.setSparseInputs(data.hasSparseInputs());
+        int sparsePosition = 0;
+        for(int set = 0; set < numSets; set++) {
+            sparsePosition = loadSet(data, sets[firstSet + set], set, sparsePosition, workspace);
+        }
+        feedForward(numSets, workspace);
+        long forwardEnd = metrics == null ? 0 : System.nanoTime();
+        calcOutputErrorDeltas(numSets, workspace);
+        backPropagate(numSets, workspace, targets, scale, decay);
+        if(metrics != null) {
+            metrics.recordTraining(forwardEnd - startTime, System.nanoTime() - forwardEnd);
+        }
+    }
 
-        return errorDeltas;
+    /**
+     * Copies the inputs and desired outputs of a data set into the given row of the workspace. Sparse inputs are
+     * appended to the sparse rows at sparsePosition, followed by the bias node, and the row's start is recorded.
+     * @return where the next row's sparse inputs go
+     */
+    private int loadSet(NNDataStore data, int set, int row, int sparsePosition, NNWorkspace workspace) {
+        data.copyDesiredOutputs(set, workspace.getDesiredOutputValue(), row * numOutputs);
+        if(!workspace.hasSparseInputs()) {
+            data.copyInputs(set, workspace.getInputNeuronValue(), row * (numInputs+1));
+            return sparsePosition;
+        }
+        int[] starts = workspace.getSparseInputStarts();
+        int[] indices = workspace.getSparseInputIndices();
+        double[] values = workspace.getSparseInputValues();
+        starts[row] = sparsePosition;
+        int position = sparsePosition + data.copySparseInputs(set, indices, values, sparsePosition);
+        indices[position] = numInputs;
+        values[position] = 1.0;
+        starts[row+1] = position + 1;
+        return position + 1;
     }
 
-    private void calculateErrorOffsets(double[][] errorOffset, double[] errorDeltas, Double[] values) {
+    private void calcOutputErrorDeltas(int numSets, NNWorkspace workspace) {
+        double[] outputNeuronValue = workspace.getOutputNeuronValue();
+        double[] desiredOutputValue = workspace.getDesiredOutputValue();
+        double[] errorDeltas = workspace.getOutputErrorDeltas();
+
+        for(int index=0; index < numSets * numOutputs; index++) {
+            errorDeltas[index] =  NNActivation.derivative(outputNeuronValue[index]) *
+                    (desiredOutputValue[index] - outputNeuronValue[index]);
+        }
+    }
 
-        for(int destIndex = 0; destIndex < errorDeltas.length; destIndex++) {
-            for(int originIndex = 0; originIndex < values.length; originIndex++) {
-                if(batch) {
-                    errorOffset[originIndex][destIndex] += learningRate * values[originIndex] * errorDeltas[destIndex];
-                } else {
-                    errorOffset[originIndex][destIndex] = learningRate * values[originIndex] * errorDeltas[destIndex] +
-                            (MOMENTUM * errorOffset[originIndex][destIndex]);
+    /**
+     * Propagates the output error deltas of numSets sets back through every hidden layer and folds the resulting
+     * error offsets for each weight matrix into the matching target as target = decay * target + scale * offsets.
+     */
+    private void backPropagate(int numSets, NNWorkspace workspace, double[][] targets, double scale, double decay) {
+        if(floatWeights != null) {
+            backPropagateSingle(numSets, workspace, targets, scale, decay);
+            return;
+        }
+        for(int layer = numWeightLayers - 1; layer > 0; layer--) {
+            int numNodes = layerSizes[layer];
+            double[] errorDeltas = workspace.getErrorDeltas(layer);
+            double[] values = workspace.getNeuronValue(layer);
+            //the bias row of the weights has no delta, so only the first numNodes rows are used
+            NNKernels.multiplyTransposed(workspace.getErrorDeltas(layer+1), numSets, layerSizes[layer+1],
+                                         weights[layer], errorDeltas, numNodes);
+            for(int set = 0; set < numSets; set++) {
+                int deltaOffset = set * numNodes;
+                int valueOffset = set * (numNodes+1);
+                for(int node = 0; node < numNodes; node++) {
+                    errorDeltas[deltaOffset + node] *= NNActivation.derivative(values[valueOffset + node]);
                 }
             }
         }
+
+        for(int layer = 0; layer < numWeightLayers; layer++) {
+            if(layer == 0 && workspace.hasSparseInputs()) {
+                NNKernels.sparseTransposedMultiply(workspace.getSparseInputStarts(), workspace.getSparseInputIndices(),
+                                                   workspace.getSparseInputValues(), numSets, numInputs+1,
+                                                   workspace.getErrorDeltas(1), targets[0], layerSizes[1], scale,
+                                                   decay);
+            } else {
+                NNKernels.transposedMultiply(workspace.getNeuronValue(layer), numSets, layerSizes[layer]+1,
+                                             workspace.getErrorDeltas(layer+1), targets[layer], layerSizes[layer+1],
+                                             scale, decay);
+            }
+        }
     }
 
-    void updateWeights() {
-        for(int inputIndex = 0; inputIndex <= numInputs; inputIndex++) {
-            for(int hiddenIndex = 0; hiddenIndex < numHidden; hiddenIndex++) {
-                weightInputToHidden[inputIndex][hiddenIndex] += inputToHiddenErrorOffset[inputIndex][hiddenIndex];
+    /**
+     * Mixed precision version of {@link #backPropagate(int, NNWorkspace, double[][], double, double)}. The error deltas
+     * are propagated in floats, but every product of a layer value and a delta is summed into the double targets.
+     */
+    private void backPropagateSingle(int numSets, NNWorkspace workspace, double[][] targets, double scale,
+                                     double decay) {
+        double[] outputErrorDeltas = workspace.getOutputErrorDeltas();
+        float[] floatOutputErrorDeltas = workspace.getFloatErrorDeltas(numWeightLayers);
+        for(int index = 0; index < numSets * numOutputs; index++) {
+            floatOutputErrorDeltas[index] = (float)outputErrorDeltas[index];
+        }
+        for(int layer = numWeightLayers - 1; layer > 0; layer--) {
+            int numNodes = layerSizes[layer];
+            float[] errorDeltas = workspace.getFloatErrorDeltas(layer);
+            float[] values = workspace.getFloatNeuronValue(layer);
+            NNKernels.multiplyTransposed(workspace.getFloatErrorDeltas(layer+1), numSets, layerSizes[layer+1],
+                                         floatWeights[layer], errorDeltas, numNodes);
+            for(int set = 0; set < numSets; set++) {
+                int deltaOffset = set * numNodes;
+                int valueOffset = set * (numNodes+1);
+                for(int node = 0; node < numNodes; node++) {
+                    errorDeltas[deltaOffset + node] *= NNActivation.derivative(values[valueOffset + node]);
+                }
             }
         }
 
-        for(int hiddenIndex = 0; hiddenIndex <= numHidden; hiddenIndex++) {
-            for(int outputIndex = 0; outputIndex < numOutputs; outputIndex++) {
-                weightHiddenToOutput[hiddenIndex][outputIndex] += hiddenToOutputErrorOffset[hiddenIndex][outputIndex];
+        for(int layer = 0; layer < numWeightLayers; layer++) {
+            if(layer == 0 && workspace.hasSparseInputs()) {
+                NNKernels.sparseTransposedMultiply(workspace.getSparseInputStarts(), workspace.getSparseInputIndices(),
+                                                   workspace.getSparseInputValues(), numSets, numInputs+1,
+                                                   workspace.getFloatErrorDeltas(1), targets[0], layerSizes[1], scale,
+                                                   decay);
+            } else {
+                NNKernels.transposedMultiply(workspace.getFloatNeuronValue(layer), numSets, layerSizes[layer]+1,
+                                             workspace.getFloatErrorDeltas(layer+1), targets[layer],
+                                             layerSizes[layer+1], scale, decay);
             }
         }
+    }
 
-        if (batch) {
-            inputToHiddenErrorOffset = new double[numInputs + 1][numHidden];
-            hiddenToOutputErrorOffset = new double[numHidden + 1][numOutputs];
+    /**
+     * Has the optimizer apply the error offsets of the last mini-batch to the weights.
+     */
+    void updateWeights() {
+        long startTime = metrics == null ? 0 : System.nanoTime();
+        optimizer.update(weights, errorOffsets, currentLearningRate);
+        weightsChanged();
+        if(metrics != null) {
+            metrics.recordUpdate(System.nanoTime() - startTime);
         }
     }
 }
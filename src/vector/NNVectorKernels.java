@@ -0,0 +1,116 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernel loops written with the JDK Vector API, which compiles them to SIMD instructions of the widest width the CPU
+ * supports instead of relying on the JIT to vectorize scalar loops. The Vector API is still an incubator module, so
+ * this file lives apart from the rest of the source and is only compiled, and used, when the module is added:
+ * <pre>
+ *   javac --add-modules jdk.incubator.vector -d out src/*.java src/vector/*.java
+ *   java --add-modules jdk.incubator.vector -cp out NNBuilder ...
+ * </pre>
+ * NNKernels loads this class by name and falls back to its scalar loops when either step was left out.
+ * @author Jason Gould
+ */
+final class NNVectorKernels implements NNKernelBackend {
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    //as many floats as DOUBLES holds doubles, so a vector of them widens to exactly one vector of doubles
+    private static final VectorSpecies<Float> HALF_FLOATS =
+            VectorSpecies.of(float.class, VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+
+    @Override
+    public String getName() {
+        return "vector (" + DOUBLES.vectorBitSize() + " bit)";
+    }
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        //a multiply and a separate add, as fma falls back to a very slow software version on CPUs without it
+        DoubleVector sum = DoubleVector.zero(DOUBLES);
+        int index = 0;
+        for(int bound = DOUBLES.loopBound(length); index < bound; index += DOUBLES.length()) {
+            DoubleVector aValues = DoubleVector.fromArray(DOUBLES, a, aOffset + index);
+            sum = sum.add(aValues.mul(DoubleVector.fromArray(DOUBLES, b, bOffset + index)));
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for(; index < length; index++) {
+            result += a[aOffset + index] * b[bOffset + index];
+        }
+        return result;
+    }
+
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        FloatVector sum = FloatVector.zero(FLOATS);
+        int index = 0;
+        for(int bound = FLOATS.loopBound(length); index < bound; index += FLOATS.length()) {
+            FloatVector aValues = FloatVector.fromArray(FLOATS, a, aOffset + index);
+            sum = sum.add(aValues.mul(FloatVector.fromArray(FLOATS, b, bOffset + index)));
+        }
+        float result = sum.reduceLanes(VectorOperators.ADD);
+        for(; index < length; index++) {
+            result += a[aOffset + index] * b[bOffset + index];
+        }
+        return result;
+    }
+
+    @Override
+    public void addScaled(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        DoubleVector alphas = DoubleVector.broadcast(DOUBLES, alpha);
+        int index = 0;
+        for(int bound = DOUBLES.loopBound(length); index < bound; index += DOUBLES.length()) {
+            DoubleVector xValues = DoubleVector.fromArray(DOUBLES, x, xOffset + index);
+            DoubleVector.fromArray(DOUBLES, y, yOffset + index).add(xValues.mul(alphas))
+                        .intoArray(y, yOffset + index);
+        }
+        for(; index < length; index++) {
+            y[yOffset + index] += alpha * x[xOffset + index];
+        }
+    }
+
+    @Override
+    public void addScaled(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+        FloatVector alphas = FloatVector.broadcast(FLOATS, alpha);
+        int index = 0;
+        for(int bound = FLOATS.loopBound(length); index < bound; index += FLOATS.length()) {
+            FloatVector xValues = FloatVector.fromArray(FLOATS, x, xOffset + index);
+            FloatVector.fromArray(FLOATS, y, yOffset + index).add(xValues.mul(alphas))
+                       .intoArray(y, yOffset + index);
+        }
+        for(; index < length; index++) {
+            y[yOffset + index] += alpha * x[xOffset + index];
+        }
+    }
+
+    @Override
+    public void addScaled(double alpha, float[] x, int xOffset, double[] y, int yOffset, int length) {
+        DoubleVector alphas = DoubleVector.broadcast(DOUBLES, alpha);
+        int index = 0;
+        for(int bound = DOUBLES.loopBound(length); index < bound; index += DOUBLES.length()) {
+            DoubleVector xValues = (DoubleVector)FloatVector.fromArray(HALF_FLOATS, x, xOffset + index)
+                                                          .convertShape(VectorOperators.F2D, DOUBLES, 0);
+            DoubleVector.fromArray(DOUBLES, y, yOffset + index).add(xValues.mul(alphas))
+                        .intoArray(y, yOffset + index);
+        }
+        for(; index < length; index++) {
+            y[yOffset + index] += alpha * x[xOffset + index];
+        }
+    }
+
+    @Override
+    public void narrow(double[] source, float[] target, int offset, int length) {
+        int index = offset;
+        for(int bound = offset + DOUBLES.loopBound(length); index < bound; index += DOUBLES.length()) {
+            FloatVector narrowed = (FloatVector)DoubleVector.fromArray(DOUBLES, source, index)
+                                                            .convertShape(VectorOperators.D2F, HALF_FLOATS, 0);
+            narrowed.intoArray(target, index);
+        }
+        for(; index < offset + length; index++) {
+            target[index] = (float)source[index];
+        }
+    }
+}
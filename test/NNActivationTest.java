@@ -0,0 +1,48 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Checks the fast sigmoid against the bounds {@link NNActivation} documents for it, and that a network trained with
+ * it still learns the example data files in the repository root.
+ * @author Jason Gould
+ */
+class NNActivationTest {
+    private static final double TABLE_LIMIT = 16;
+    private static final double TABLE_ERROR = 3e-6;
+    private static final double TAIL_ERROR = 1.2e-7;
+    //not a power of two, so that the sweep lands between the points the table is sampled at as well as on them
+    private static final double STEP = 1.0 / 1000;
+
+    @Test
+    void fastSigmoidIsCloseToSigmoidInsideTheTable() {
+        for(double rawValue = -TABLE_LIMIT; rawValue <= TABLE_LIMIT; rawValue += STEP) {
+            assertEquals(NNActivation.sigmoid(rawValue), NNActivation.fastSigmoid(rawValue), TABLE_ERROR,
+                         "at " + rawValue);
+        }
+    }
+
+    @Test
+    void fastSigmoidIsCloseToZeroOrOneOutsideTheTable() {
+        for(double rawValue = TABLE_LIMIT; rawValue <= 4 * TABLE_LIMIT; rawValue += STEP) {
+            assertEquals(1, NNActivation.fastSigmoid(rawValue), TAIL_ERROR, "at " + rawValue);
+            assertEquals(0, NNActivation.fastSigmoid(-rawValue), TAIL_ERROR, "at " + -rawValue);
+        }
+        assertEquals(1, NNActivation.fastSigmoid(Double.POSITIVE_INFINITY), TAIL_ERROR);
+        assertEquals(0, NNActivation.fastSigmoid(Double.NEGATIVE_INFINITY), TAIL_ERROR);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"XOR.data", "BinaryAddition.data"})
+    void fastSigmoidTrainingReachesTheDesiredAccuracy(String dataFileName) {
+        NNBuilder builder = new NNBuilder(dataFileName);
+        builder.init(new String[] {dataFileName, "--seed", "1", "--quiet", "--fast-sigmoid"});
+        builder.run();
+        assertTrue(builder.isDesiredAccuracyReached(),
+                   dataFileName + " only reached " + builder.getAccuracy() + " after " + builder.getIterations() +
+                   " iterations");
+    }
+}
@@ -0,0 +1,140 @@
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+/**
+ * Checks that once the JIT has compiled them, the operations of the steady state training loop in NNBuilder.run,
+ * processing a data set, back propagating, training a batch, updating the weights and evaluating the accuracy,
+ * allocate nothing on the heap, with dense or sparse inputs and in double or single precision. The bytes the thread
+ * has allocated are read before and after WINDOW calls of an operation; the JIT has to compile the allocations of its
+ * interpreted code away first, and the Vector API kernels only stop allocating once C2 has compiled them into their
+ * callers, so the windows are repeated until one of them allocates nothing, failing if none has by MAX_WARM_UP_NANOS.
+ * @author Jason Gould
+ */
+class NNAllocationTest {
+    private static final int[] LAYER_SIZES = {64, 64, 8};
+    private static final int NUM_SETS = 256;
+    private static final int BATCH_SIZE = 16;
+    private static final double LEARNING_RATE = 0.2;
+    //well under the density up to which a data store indexes its inputs as sparse rows
+    private static final double INPUT_DENSITY = 0.1;
+    private static final int WINDOW = 10000;
+    private static final long MAX_WARM_UP_NANOS = 60_000_000_000L;
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    @ParameterizedTest(name = "sparse inputs {0}, single precision {1}")
+    @CsvSource({"false, false", "true, false", "false, true", "true, true"})
+    void processDoesNotAllocate(boolean sparseInputs, boolean singlePrecision) {
+        NNDataStore data = newData(sparseInputs);
+        NeuralNetwork network = newNetwork(singlePrecision);
+        int[] nextSet = new int[1];
+        assertNoAllocation("process", () -> {
+            network.process(data, nextSet[0]);
+            nextSet[0] = (nextSet[0] + 1) % NUM_SETS;
+        });
+    }
+
+    @ParameterizedTest(name = "sparse inputs {0}, single precision {1}")
+    @CsvSource({"false, false", "true, false", "false, true", "true, true"})
+    void backPropagateDoesNotAllocate(boolean sparseInputs, boolean singlePrecision) {
+        NNDataStore data = newData(sparseInputs);
+        NeuralNetwork network = newNetwork(singlePrecision);
+        network.process(data, 0);
+        assertNoAllocation("backPropagate", network::backPropagate);
+    }
+
+    @ParameterizedTest(name = "sparse inputs {0}, single precision {1}")
+    @CsvSource({"false, false", "true, false", "false, true", "true, true"})
+    void updateWeightsDoesNotAllocate(boolean sparseInputs, boolean singlePrecision) {
+        NNDataStore data = newData(sparseInputs);
+        NeuralNetwork network = newNetwork(singlePrecision);
+        network.process(data, 0);
+        network.backPropagate();
+        assertNoAllocation("updateWeights", network::updateWeights);
+    }
+
+    @ParameterizedTest(name = "sparse inputs {0}, single precision {1}")
+    @CsvSource({"false, false", "true, false", "false, true", "true, true"})
+    void trainBatchDoesNotAllocate(boolean sparseInputs, boolean singlePrecision) {
+        NNDataStore data = newData(sparseInputs);
+        NeuralNetwork network = newNetwork(singlePrecision);
+        int[] sets = allSets();
+        int[] nextBatch = new int[1];
+        assertNoAllocation("trainBatch", () -> {
+            network.trainBatch(data, sets, nextBatch[0], BATCH_SIZE);
+            network.updateWeights();
+            nextBatch[0] = (nextBatch[0] + BATCH_SIZE) % NUM_SETS;
+        });
+    }
+
+    @ParameterizedTest(name = "sparse inputs {0}, single precision {1}")
+    @CsvSource({"false, false", "true, false", "false, true", "true, true"})
+    void calcAccuracyDoesNotAllocate(boolean sparseInputs, boolean singlePrecision) {
+        NNDataStore data = newData(sparseInputs);
+        NNEvaluator evaluator = new NNEvaluator(newNetwork(singlePrecision), LAYER_SIZES[LAYER_SIZES.length - 1], null);
+        int[] sets = allSets();
+        assertNoAllocation("calcAccuracy", () -> evaluator.calcAccuracy(data, sets));
+    }
+
+    private static void assertNoAllocation(String name, Runnable operation) {
+        long deadline = System.nanoTime() + MAX_WARM_UP_NANOS;
+        long allocated;
+        do {
+            long before = THREADS.getCurrentThreadAllocatedBytes();
+            for(int call = 0; call < WINDOW; call++) {
+                operation.run();
+            }
+            allocated = THREADS.getCurrentThreadAllocatedBytes() - before;
+        } while(allocated != 0 && System.nanoTime() < deadline);
+        assertTrue(allocated == 0, name + " still allocated " + allocated + " bytes over " + WINDOW + " calls");
+    }
+
+    /**
+     * Generates NUM_SETS data sets of random 0/1 values with INPUT_DENSITY of the inputs set, so that the same inputs
+     * can be multiplied densely or indexed as sparse rows.
+     */
+    private static NNDataStore newData(boolean sparseInputs) {
+        int numInputs = LAYER_SIZES[0];
+        int numOutputs = LAYER_SIZES[LAYER_SIZES.length - 1];
+        Random randomGenerator = new Random(numInputs);
+        double[] values = new double[NUM_SETS * (numInputs + numOutputs)];
+        for(int set = 0; set < NUM_SETS; set++) {
+            int row = set * (numInputs + numOutputs);
+            for(int input = 0; input < numInputs; input++) {
+                values[row + input] = randomGenerator.nextDouble() < INPUT_DENSITY ? 1 : 0;
+            }
+            for(int output = 0; output < numOutputs; output++) {
+                values[row + numInputs + output] = randomGenerator.nextInt(2);
+            }
+        }
+        NNDataStore data = new NNDataStore(numInputs, numOutputs, NUM_SETS, values);
+        assertTrue(!sparseInputs || data.indexSparseInputs(), "the inputs are too dense to index as sparse rows");
+        return data;
+    }
+
+    private static int[] allSets() {
+        int[] sets = new int[NUM_SETS];
+        for(int set = 0; set < NUM_SETS; set++) {
+            sets[set] = set;
+        }
+        return sets;
+    }
+
+    private static NeuralNetwork newNetwork(boolean singlePrecision) {
+        Random randomGenerator = new Random(LAYER_SIZES[1]);
+        double[][] weights = NeuralNetwork.newWeights(LAYER_SIZES);
+        for(double[] matrix: weights) {
+            for(int index = 0; index < matrix.length; index++) {
+                matrix[index] = randomGenerator.nextDouble() - 0.4999;
+            }
+        }
+        NeuralNetwork network = new NeuralNetwork(LAYER_SIZES, LEARNING_RATE, BATCH_SIZE, weights);
+        network.setSinglePrecision(singlePrecision);
+        return network;
+    }
+}